@@ -0,0 +1,75 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * 
+ * 
+ * Full {@code OnStart}/{@code OnStop} cycle of {@code CommonsDaemonService} (windows-service entry points, without procrun), 
+ * driven by {@code ServiceHarness}: no console, no constructor stack trace, service and worker logs are closed by {@code OnStop}.
+ * 
+ * Cycle is: {@code OnStart} in harness main thread (it runs main service cycle), wait for startup and first {@code DoWork()} call, 
+ * {@code OnStop}, wait for main thread to exit. Harness is opened and closed outside of measured cycle.
+ * 
+ */
+@Fork(1)
+@State(Scope.Thread)
+public class ServiceLifecycleBenchmark {
+    
+    public static class StandInService extends CommonsDaemonService
+    {
+        static { setSingletonClass(StandInService.class); }
+        static volatile StandInServiceWorkerThread lastWorker;
+        public StandInService()
+        {
+            super("ServiceLifecycleBenchmark");
+        }
+        @Override
+        protected CommonsDaemonServiceStartInfo onServiceStart()
+        {
+            StandInServiceWorkerThread w = new StandInServiceWorkerThread(false);
+            lastWorker = w;
+            return new CommonsDaemonServiceStartInfo(StandInServiceWorkerThread.BenchLogs.msgLog, StandInServiceWorkerThread.BenchLogs.excLog, w);
+        }
+    }
+    
+    ServiceHarness harness;
+    @Setup(Level.Invocation)
+    public void setup()
+    {
+        StandInService.lastWorker = null;
+        harness = new ServiceHarness(StandInService.class);
+    }
+    @TearDown(Level.Invocation)
+    public void tearDown()
+    {
+        harness.close();
+    }
+    
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 20, batchSize = 1)
+    @Measurement(iterations = 100, batchSize = 1)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long onStartOnStopCycle() throws Exception
+    {
+        harness.onStart();
+        StandInServiceWorkerThread w = StandInService.lastWorker;
+        w.awaitDoWorkCount(1);
+        harness.onStop();
+        return w.doWorkCount;
+    }
+}
@@ -0,0 +1,130 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * 
+ * 
+ * {@code ServiceWorkerThread} loop costs, measured on {@code StandInServiceWorkerThread}.
+ * 
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ServiceWorkerThreadBenchmark {
+    
+    @State(Scope.Benchmark)
+    public static class BusyWorker
+    {
+        StandInServiceWorkerThread worker;
+        @Setup(Level.Trial)
+        public void setup() throws Exception
+        {
+            worker = new StandInServiceWorkerThread(true);
+            worker.start();
+        }
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            worker.signalStop();
+            worker.awaitStopped();
+        }
+    }
+    
+    @State(Scope.Benchmark)
+    public static class IdleWorker
+    {
+        StandInServiceWorkerThread worker;
+        @Setup(Level.Trial)
+        public void setup() throws Exception
+        {
+            worker = new StandInServiceWorkerThread(false);
+            worker.start();
+            worker.awaitDoWorkCount(1);
+        }
+        @TearDown(Level.Trial)
+        public void tearDown()
+        {
+            worker.signalStop();
+            worker.awaitStopped();
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class StartedWorker
+    {
+        StandInServiceWorkerThread worker;
+        @Setup(Level.Invocation)
+        public void setup() throws Exception
+        {
+            worker = new StandInServiceWorkerThread(false);
+            worker.start();
+            worker.awaitDoWorkCount(1);
+        }
+        @TearDown(Level.Invocation)
+        public void tearDown()
+        {
+            worker.signalStop();
+            worker.awaitStopped();
+        }
+    }
+    
+    private static final int iterationsPerInvocation = 10_000;
+    
+    /**
+     * per-iteration overhead of worker loop with empty {@code DoWork()} that always has backlog
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(iterationsPerInvocation)
+    public long iterationOverhead(BusyWorker s)
+    {
+        long target = s.worker.doWorkCount + iterationsPerInvocation;
+        s.worker.awaitDoWorkCount(target);
+        return target;
+    }
+    
+    /**
+     * latency from {@code wakeUp()} (work arrival) to {@code DoWork()} call of idle worker
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long wakeUpToDoWork(IdleWorker s)
+    {
+        long target = s.worker.doWorkCount + 1;
+        s.worker.wakeUp();
+        s.worker.awaitDoWorkCount(target);
+        return target;
+    }
+    
+    /**
+     * latency from {@code signalStop()} to {@code isStopped()} of idle worker
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 200, batchSize = 1)
+    @Warmup(iterations = 50, batchSize = 1)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean signalStopToIsStopped(StartedWorker s)
+    {
+        s.worker.signalStop();
+        s.worker.awaitStopped();
+        return s.worker.isStopped();
+    }
+}
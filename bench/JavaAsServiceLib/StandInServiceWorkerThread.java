@@ -0,0 +1,57 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import JavaAsServiceLib.CommonsDaemonService.ServiceWorkerThread;
+import JavaAsServiceLib.CommonsDaemonService.Worker_DoWork_resultFlags;
+
+/**
+ *
+ * 
+ * 
+ * {@code ServiceWorkerThread} with empty {@code DoWork()} for benchmarks.
+ * 
+ * {@code busy} worker calls {@code DoWork()} again without sleep; 
+ * idle worker sleeps 1 hour between {@code DoWork()} calls, so only {@code wakeUp()} or {@code signalStop()} wake it.
+ * 
+ */
+class StandInServiceWorkerThread extends ServiceWorkerThread {
+    private static final Worker_DoWork_resultFlags busyResult = Worker_DoWork_resultFlags.processed(1, true);
+    private final boolean busy;
+    volatile long doWorkCount;
+    
+    StandInServiceWorkerThread(boolean busy)
+    {
+        super("StandInServiceWorkerThread", BenchLogs.msgLog, BenchLogs.excLog, 60 * 60, 0);
+        this.busy = busy;
+    }
+    
+    @Override
+    protected void JustBeforeStart() throws Exception { }
+    @Override
+    protected Worker_DoWork_resultFlags DoWork() throws Exception 
+    { 
+        doWorkCount++;
+        return busy ? busyResult : null; 
+    }
+    @Override
+    protected void DoWorkOnException(Exception ex, StackTraceElement exSte) { }
+    @Override
+    protected void onThreadExit() throws Exception { }
+    
+    void awaitDoWorkCount(long count)
+    {
+        while (doWorkCount < count)
+            Thread.yield();
+    }
+    void awaitStopped()
+    {
+        while (!isStopped())
+            Thread.yield();
+    }
+    
+    static final class BenchLogs
+    {
+        static final Common.Log msgLog = new Common.Log("JavaAsServiceLib.bench.msg");
+        static final Common.Log excLog = new Common.Log("JavaAsServiceLib.bench.exc");
+    }
+}
@@ -0,0 +1,102 @@
+package JavaAsServiceLib;
+
+import JavaAsServiceLib.CommonsDaemonService.Worker_DoWork_resultFlags;
+
+/**
+ *
+ * 
+ * 
+ * Computes sleep between {@code DoWork()} calls of {@code ServiceWorkerThread} from {@code DoWork()} results.
+ * 
+ * While there is backlog ({@code backlogRemains}) next call is done without sleep. 
+ * While items are processed ({@code itemsProcessed > 0} or {@code doFastLoop}) sleep is {@code minDelay_ms}. 
+ * When idle, sleep grows exponentially (by {@code backoffMultiplier}) up to {@code maxDelay_ms}.
+ * 
+ * Instance keeps state of one worker and must not be shared between workers.
+ * 
+ */
+public final class AdaptivePacer {
+    private volatile long minDelay_ms;
+    private volatile long maxDelay_ms;
+    private volatile double backoffMultiplier;
+    private long currentDelay_ms;
+    private volatile long lastDelay_ms;
+    
+    /**
+     * @param minDelay_ms sleep while worker has work
+     * @param maxDelay_ms max sleep of idle worker
+     */
+    public AdaptivePacer(long minDelay_ms, long maxDelay_ms)
+    {
+        this(minDelay_ms, maxDelay_ms, 2);
+    }
+    /**
+     * @param minDelay_ms sleep while worker has work
+     * @param maxDelay_ms max sleep of idle worker
+     * @param backoffMultiplier idle sleep growth per idle {@code DoWork()} call
+     */
+    public AdaptivePacer(long minDelay_ms, long maxDelay_ms, double backoffMultiplier)
+    {
+        retune(minDelay_ms, maxDelay_ms, backoffMultiplier);
+        this.currentDelay_ms = this.minDelay_ms;
+    }
+    
+    /**
+     * changes pacing parameters (can be called from any thread)
+     */
+    public void retune(long minDelay_ms, long maxDelay_ms, double backoffMultiplier)
+    {
+        if (minDelay_ms < 0)
+            throw new Error("MUSTNEVERTHROW: minDelay_ms must not be negative!");
+        if (maxDelay_ms < minDelay_ms)
+            throw new Error("MUSTNEVERTHROW: maxDelay_ms must not be less than minDelay_ms!");
+        if (!(backoffMultiplier >= 1))
+            throw new Error("MUSTNEVERTHROW: backoffMultiplier must not be less than 1!");
+        this.minDelay_ms = minDelay_ms;
+        this.maxDelay_ms = maxDelay_ms;
+        this.backoffMultiplier = backoffMultiplier;
+    }
+    public long minDelay_ms() { return minDelay_ms; }
+    public long maxDelay_ms() { return maxDelay_ms; }
+    public double backoffMultiplier() { return backoffMultiplier; }
+    /**
+     * @return last computed sleep
+     */
+    public long lastDelay_ms() { return lastDelay_ms; }
+    
+    /**
+     * @param resultFlags {@code DoWork()} result (null - idle call)
+     * @return sleep before next {@code DoWork()} call
+     */
+    public long nextDelay_ms(Worker_DoWork_resultFlags resultFlags)
+    {
+        long min = minDelay_ms;
+        long max = maxDelay_ms;
+        long r;
+        if (resultFlags != null && resultFlags.backlogRemains)
+        {
+            currentDelay_ms = min;
+            r = 0;
+        }
+        else if (resultFlags != null && (resultFlags.itemsProcessed > 0 || resultFlags.doFastLoop))
+        {
+            currentDelay_ms = min;
+            r = min;
+        }
+        else
+        {
+            double next = Math.max(currentDelay_ms, Math.max(min, 1)) * backoffMultiplier;
+            currentDelay_ms = next >= max ? max : (long)next;
+            r = currentDelay_ms;
+        }
+        lastDelay_ms = r;
+        return r;
+    }
+    /**
+     * forgets idle backoff, next idle sleep starts from {@code minDelay_ms}
+     */
+    public void reset()
+    {
+        currentDelay_ms = minDelay_ms;
+    }
+}
@@ -0,0 +1,368 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import java.util.ArrayList;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *
+ * 
+ * 
+ * Asynchronous front-end of {@code Common.Log}.
+ * 
+ * Records are put to bounded ring buffer and written to {@code log} in batches by background writer thread, 
+ * so calling thread does not wait for file I/O. 
+ * When buffer is full, {@code OverflowPolicy} is applied. 
+ * Write with {@code true} (force) argument is never dropped and returns only after it (and all records before it) 
+ * was written to {@code log}, so it keeps its durability guarantee.
+ * 
+ * Created with {@code AsyncLog(Common.Log log)} instance writes synchronously, as {@code log} itself.
+ * 
+ */
+public final class AsyncLog {
+    /**
+     * What to do with new record when buffer is full
+     */
+    public enum OverflowPolicy 
+    { 
+        /**
+         * wait for free space in buffer (record is dropped if waiting thread is interrupted)
+         */
+        BLOCK, 
+        /**
+         * drop record (see {@code droppedCount()})
+         */
+        DROP, 
+        /**
+         * keep every {@code sampleEvery}-th overflowing record (waiting for free space), drop others
+         */
+        SAMPLE 
+    }
+    
+    private static final int batchSize = 256;
+    private static final CopyOnWriteArrayList<AsyncLog> asyncLogs = new CopyOnWriteArrayList<>();
+    
+    public final Common.Log log;
+    public final OverflowPolicy overflowPolicy;
+    private final int sampleEvery;
+    private final ArrayBlockingQueue<Record> buffer;
+    private final Thread writer;
+    private volatile boolean closed;
+    /**
+     * read - enqueue of record, write - close: no record is put to buffer after end record of close
+     */
+    private final ReentrantReadWriteLock closeLOCK = new ReentrantReadWriteLock();
+    private volatile long closeTimeOut_ms;
+    private static final Record endRecord = new Record(null, false);
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong overflowed = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    
+    /**
+     * synchronous (pass-through) log
+     */
+    public AsyncLog(Common.Log log)
+    {
+        this.log = Objects.requireNonNull(log, "MUSTNEVERTHROW: log is null!");
+        this.overflowPolicy = null;
+        this.sampleEvery = 0;
+        this.buffer = null;
+        this.writer = null;
+    }
+    /**
+     * @param log log to write to
+     * @param capacity buffer capacity (records)
+     * @param overflowPolicy what to do with new record when buffer is full
+     * @param sampleEvery for {@code OverflowPolicy.SAMPLE}: every {@code sampleEvery}-th overflowing record is kept
+     */
+    public AsyncLog(Common.Log log, int capacity, OverflowPolicy overflowPolicy, int sampleEvery)
+    {
+        this.log = Objects.requireNonNull(log, "MUSTNEVERTHROW: log is null!");
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy, "MUSTNEVERTHROW: overflowPolicy is null!");
+        if (capacity <= 0)
+            throw new Error("MUSTNEVERTHROW: capacity must be positive!");
+        if (overflowPolicy == OverflowPolicy.SAMPLE && sampleEvery <= 0)
+            throw new Error("MUSTNEVERTHROW: sampleEvery must be positive!");
+        this.sampleEvery = sampleEvery;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.writer = new Thread(this::writerLoop);
+        this.writer.setName("AsyncLog writer thread");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        asyncLogs.add(this);
+    }
+    
+    public boolean isAsync() { return buffer != null; }
+    /**
+     * @return count of records dropped because of buffer overflow (or interrupted wait for free space)
+     */
+    public long droppedCount() { return dropped.get(); }
+    /**
+     * @return count of records, that found buffer full
+     */
+    public long overflowCount() { return overflowed.get(); }
+    /**
+     * @return count of records failed to be written by writer thread
+     */
+    public long writeErrorCount() { return writeErrors.get(); }
+    /**
+     * @return count of records in buffer
+     */
+    public int pendingCount() { return buffer == null ? 0 : buffer.size(); }
+    
+    public void write(String source, String message)
+    {
+        if (buffer == null) log.write(source, message);
+        else enqueue(() -> { log.write(source, message); }, false);
+    }
+    public void write(String source, String message, boolean force)
+    {
+        if (buffer == null) log.write(source, message, force);
+        else enqueue(() -> { log.write(source, message, force); }, force);
+    }
+    public void write(String source, String message, String[][] params)
+    {
+        if (buffer == null) log.write(source, message, params);
+        else enqueue(() -> { log.write(source, message, params); }, false);
+    }
+    public void write(Throwable th, StackTraceElement ste, String message)
+    {
+        if (buffer == null) log.write(th, ste, message);
+        else enqueue(() -> { log.write(th, ste, message); }, false);
+    }
+    public void write(Throwable th, StackTraceElement ste, String message, boolean force)
+    {
+        if (buffer == null) log.write(th, ste, message, force);
+        else enqueue(() -> { log.write(th, ste, message, force); }, force);
+    }
+    public void write(Throwable th, StackTraceElement ste, String[][] params)
+    {
+        if (buffer == null) log.write(th, ste, params);
+        else enqueue(() -> { log.write(th, ste, params); }, false);
+    }
+    
+    /**
+     * Waits until all records buffered before the call are written.
+     * 
+     * @return false if timeout elapsed
+     */
+    public boolean flush(long timeout_ms)
+    {
+        if (buffer == null || !writer.isAlive())
+            return true;
+        Record r = new Record(null, true);
+        try
+        {
+            closeLOCK.readLock().lock();
+            try
+            {
+                if (closed)
+                    return awaitWriterExit(timeout_ms);
+                if (!buffer.offer(r, timeout_ms, TimeUnit.MILLISECONDS))
+                    return false;
+            }
+            finally
+            {
+                closeLOCK.readLock().unlock();
+            }
+            return r.await(timeout_ms);
+        }
+        catch (InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+    /**
+     * Writes all buffered records and stops writer thread; after that log writes synchronously 
+     * (records written after close wait for writer thread, so they are not written before buffered ones).
+     * 
+     * @return false if timeout elapsed; if end record did not fit to buffer in time, log is not closed
+     */
+    public boolean close(long timeout_ms)
+    {
+        if (buffer == null)
+            return true;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+        closeLOCK.writeLock().lock();
+        try
+        {
+            if (closed)
+                return awaitWriterExit(timeout_ms);
+            //closed only with end record in buffer: otherwise writer never exits and writes after close would run concurrently with it
+            if (!buffer.offer(endRecord, timeout_ms, TimeUnit.MILLISECONDS))
+                return false;
+            closeTimeOut_ms = timeout_ms;
+            closed = true;
+            asyncLogs.remove(this);
+        }
+        catch (InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            closeLOCK.writeLock().unlock();
+        }
+        return awaitWriterExit(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+    }
+    private boolean awaitWriterExit(long timeout_ms)
+    {
+        try
+        {
+            writer.join(Math.max(1, timeout_ms));
+        }
+        catch (InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return !writer.isAlive();
+    }
+    /**
+     * flushes all asynchronous logs (e.g. before {@code System.exit})
+     * 
+     * @return false if timeout elapsed for some log
+     */
+    public static boolean flushAll(long timeout_ms)
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+        boolean r = true;
+        for (AsyncLog l : asyncLogs)
+            r &= l.flush(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        return r;
+    }
+    
+    private void enqueue(Common.Action write, boolean force)
+    {
+        Record r = new Record(write, force);
+        boolean enqueued = false;
+        boolean interrupted = false;
+        closeLOCK.readLock().lock();
+        try
+        {
+            if (!closed)
+            {
+                if (!buffer.offer(r))
+                {
+                    long n = overflowed.getAndIncrement();
+                    if (force || overflowPolicy == OverflowPolicy.BLOCK || (overflowPolicy == OverflowPolicy.SAMPLE && n % sampleEvery == 0))
+                    {
+                        //force write is never dropped: interrupt is kept for caller
+                        for (;;)
+                            try
+                            {
+                                buffer.put(r);
+                                break;
+                            }
+                            catch (InterruptedException iex)
+                            {
+                                interrupted = true;
+                                if (!force)
+                                    break;
+                            }
+                        //interrupted wait: record is dropped, calling thread must not write it concurrently with writer (and out of order)
+                        if (interrupted && !force)
+                        {
+                            dropped.incrementAndGet();
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                    else
+                    {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                }
+                enqueued = true;
+            }
+        }
+        finally
+        {
+            closeLOCK.readLock().unlock();
+        }
+        if (!enqueued)
+        {
+            //closed log: after records buffered before close
+            awaitWriterExit(closeTimeOut_ms);
+            write.call();
+            return;
+        }
+        if (force)
+            for (;;)
+                try
+                {
+                    r.await(Long.MAX_VALUE);
+                    break;
+                }
+                catch (InterruptedException iex)
+                {
+                    interrupted = true;
+                }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+    
+    private void writerLoop()
+    {
+        ArrayList<Record> batch = new ArrayList<>(batchSize);
+        while (true)
+        {
+            try
+            {
+                batch.add(buffer.take());
+            }
+            catch (InterruptedException iex)
+            {
+                continue;
+            }
+            buffer.drainTo(batch, batchSize - 1);
+            for (Record r : batch)
+            {
+                if (r == endRecord)
+                    return;
+                if (r.write != null)
+                    try { r.write.call(); } catch (Throwable th) { writeErrors.incrementAndGet(); }
+                if (r.waited)
+                    r.complete();
+            }
+            batch.clear();
+        }
+    }
+    
+    private static final class Record
+    {
+        final Common.Action write;
+        final boolean waited;
+        private boolean completed;
+        Record(Common.Action write, boolean waited) { this.write = write; this.waited = waited; }
+        synchronized void complete()
+        {
+            completed = true;
+            notifyAll();
+        }
+        synchronized boolean await(long timeout_ms) throws InterruptedException
+        {
+            long deadline = timeout_ms == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+            while (!completed)
+            {
+                if (deadline == Long.MAX_VALUE)
+                    wait();
+                else
+                {
+                    long rest = deadline - System.nanoTime();
+                    if (rest <= 0)
+                        return false;
+                    TimeUnit.NANOSECONDS.timedWait(this, rest);
+                }
+            }
+            return true;
+        }
+    }
+}
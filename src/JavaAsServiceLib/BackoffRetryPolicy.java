@@ -0,0 +1,116 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * 
+ * 
+ * {@code RetryPolicy} with exponential backoff, jitter and circuit-breaker.
+ * 
+ * Sleep after n-th consecutive {@code DoWork()} exception is {@code initialDelay_ms * multiplier^(n-1)}, 
+ * capped by {@code maxDelay_ms} and randomized by +-{@code jitter} fraction; success resets it. 
+ * After {@code breakerThreshold} consecutive exceptions circuit opens for {@code breakerOpen_ms}, 
+ * then one trial {@code DoWork()} call is done (half-open): success closes circuit, failure opens it again.
+ * 
+ */
+public final class BackoffRetryPolicy implements RetryPolicy {
+    public final long initialDelay_ms;
+    public final long maxDelay_ms;
+    public final double multiplier;
+    public final double jitter;
+    public final int breakerThreshold;
+    public final long breakerOpen_ms;
+    
+    private volatile CircuitState circuitState = CircuitState.CLOSED;
+    private volatile int consecutiveFailures;
+    private volatile long lastDelay_ms;
+    private long openUntil_ns;
+    
+    /**
+     * policy without circuit-breaker
+     * 
+     * @param initialDelay_ms sleep after first exception
+     * @param maxDelay_ms max sleep
+     */
+    public BackoffRetryPolicy(long initialDelay_ms, long maxDelay_ms)
+    {
+        this(initialDelay_ms, maxDelay_ms, 2, 0.2, 0, 0);
+    }
+    /**
+     * @param initialDelay_ms sleep after first exception
+     * @param maxDelay_ms max sleep
+     * @param multiplier sleep growth per consecutive exception
+     * @param jitter sleep randomization fraction, 0..1
+     * @param breakerThreshold consecutive exceptions to open circuit (0 - no circuit-breaker)
+     * @param breakerOpen_ms how long circuit stays open
+     */
+    public BackoffRetryPolicy(long initialDelay_ms, long maxDelay_ms, double multiplier, double jitter, int breakerThreshold, long breakerOpen_ms)
+    {
+        if (initialDelay_ms < 0 || maxDelay_ms < initialDelay_ms)
+            throw new Error("MUSTNEVERTHROW: 0 <= initialDelay_ms <= maxDelay_ms is required!");
+        if (!(multiplier >= 1))
+            throw new Error("MUSTNEVERTHROW: multiplier must not be less than 1!");
+        if (!(jitter >= 0 && jitter <= 1))
+            throw new Error("MUSTNEVERTHROW: jitter must be in 0..1!");
+        if (breakerThreshold < 0 || (breakerThreshold > 0 && breakerOpen_ms <= 0))
+            throw new Error("MUSTNEVERTHROW: breakerThreshold must not be negative, breakerOpen_ms must be positive!");
+        this.initialDelay_ms = initialDelay_ms;
+        this.maxDelay_ms = maxDelay_ms;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.breakerThreshold = breakerThreshold;
+        this.breakerOpen_ms = breakerOpen_ms;
+    }
+    
+    @Override
+    public void beforeAttempt()
+    {
+        if (circuitState == CircuitState.OPEN && ServiceClock.current().nanoTime() - openUntil_ns >= 0)
+            circuitState = CircuitState.HALF_OPEN;
+    }
+    @Override
+    public void onSuccess() 
+    { 
+        if (consecutiveFailures != 0)
+            consecutiveFailures = 0;
+        if (circuitState != CircuitState.CLOSED)
+            circuitState = CircuitState.CLOSED;
+    }
+    @Override
+    public long onFailure(Exception ex) 
+    { 
+        int failures = consecutiveFailures + 1;
+        consecutiveFailures = failures;
+        long delay;
+        if (breakerThreshold > 0 && (circuitState == CircuitState.HALF_OPEN || failures >= breakerThreshold))
+        {
+            circuitState = CircuitState.OPEN;
+            delay = jittered(breakerOpen_ms, breakerOpen_ms);
+            openUntil_ns = ServiceClock.current().nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        }
+        else
+        {
+            double d = initialDelay_ms;
+            for (int n = 1; n < failures && d < maxDelay_ms; n++)
+                d *= multiplier;
+            delay = jittered(d >= maxDelay_ms ? maxDelay_ms : (long)d, maxDelay_ms);
+        }
+        lastDelay_ms = delay;
+        return delay;
+    }
+    private long jittered(long delay_ms, long max_ms)
+    {
+        if (jitter == 0 || delay_ms == 0)
+            return delay_ms;
+        long r = delay_ms + (long)((ThreadLocalRandom.current().nextDouble() * 2 - 1) * jitter * delay_ms);
+        return r < 0 ? 0 : (r > max_ms ? max_ms : r);
+    }
+    @Override
+    public CircuitState circuitState() { return circuitState; }
+    @Override
+    public int consecutiveFailures() { return consecutiveFailures; }
+    @Override
+    public long lastDelay_ms() { return lastDelay_ms; }
+}
@@ -0,0 +1,156 @@
+package JavaAsServiceLib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * 
+ * 
+ * Crash-safe checkpoint storage of {@code ServiceWorkerThread} state (see {@code ServiceWorkerThread.setCheckpointing}). 
+ * 
+ * State is written to two memory-mapped slot files ({@code <file>.a}, {@code <file>.b}) in turn; 
+ * slot header contains magic, format version, sequence number, state version, length and CRC32. 
+ * Last valid slot (max sequence number with correct CRC) is current, so torn write (crash in the middle) 
+ * leaves previous checkpoint readable: new checkpoint replaces old one atomically.
+ * 
+ */
+final class CheckpointFile {
+    private static final int magic = 0x4A415343; //"JASC"
+    private static final int formatVersion = 1;
+    private static final int headerSize = 32; //magic, formatVersion, seq(8), stateVersion, length, crc, reserved
+    private static final int pageSize = 4096;
+    
+    static final class State
+    {
+        final byte[] data;
+        final int stateVersion;
+        final long seq;
+        State(byte[] data, int stateVersion, long seq)
+        {
+            this.data = data;
+            this.stateVersion = stateVersion;
+            this.seq = seq;
+        }
+    }
+    
+    private final Path[] slotFiles;
+    private final MappedByteBuffer[] slots = new MappedByteBuffer[2];
+    private long seq;
+    private int nextSlot;
+    
+    CheckpointFile(Path file)
+    {
+        Path f = file.toAbsolutePath();
+        slotFiles = new Path[] { f.resolveSibling(f.getFileName() + ".a"), f.resolveSibling(f.getFileName() + ".b") };
+    }
+    
+    /**
+     * Reads last valid checkpoint; next {@code write()} will not overwrite it.
+     * 
+     * @return last valid checkpoint, or null
+     */
+    synchronized State read() throws IOException
+    {
+        State best = null;
+        int bestSlot = -1;
+        for (int n = 0; n < 2; n++)
+        {
+            State s = readSlot(slotFiles[n]);
+            if (s != null && (best == null || s.seq > best.seq))
+            {
+                best = s;
+                bestSlot = n;
+            }
+        }
+        seq = best == null ? 0 : best.seq;
+        nextSlot = bestSlot == 0 ? 1 : 0;
+        return best;
+    }
+    private static State readSlot(Path file) throws IOException
+    {
+        if (!Files.isRegularFile(file))
+            return null;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            if (ch.size() < headerSize)
+                return null;
+            ByteBuffer h = ByteBuffer.allocate(headerSize);
+            while (h.hasRemaining() && ch.read(h) >= 0) { }
+            h.flip();
+            if (h.remaining() < headerSize || h.getInt(0) != magic || h.getInt(4) != formatVersion)
+                return null;
+            long seq = h.getLong(8);
+            int stateVersion = h.getInt(16);
+            int length = h.getInt(20);
+            int crc = h.getInt(24);
+            if (length < 0 || headerSize + (long)length > ch.size())
+                return null;
+            ByteBuffer d = ByteBuffer.allocate(length);
+            while (d.hasRemaining() && ch.read(d) >= 0) { }
+            if (d.hasRemaining())
+                return null;
+            byte[] data = d.array();
+            if (crc(seq, stateVersion, data) != crc)
+                return null;
+            return new State(data, stateVersion, seq);
+        }
+    }
+    
+    /**
+     * Writes checkpoint to older slot and forces it to disk.
+     */
+    synchronized void write(byte[] data, int stateVersion) throws IOException
+    {
+        int slot = nextSlot;
+        MappedByteBuffer m = map(slot, headerSize + data.length);
+        long newSeq = seq + 1;
+        m.putInt(0, 0); //slot is invalid until header is complete
+        m.position(headerSize);
+        m.put(data);
+        m.putLong(8, newSeq);
+        m.putInt(16, stateVersion);
+        m.putInt(20, data.length);
+        m.putInt(24, crc(newSeq, stateVersion, data));
+        m.putInt(4, formatVersion);
+        m.putInt(0, magic);
+        m.force();
+        seq = newSeq;
+        nextSlot = slot ^ 1;
+    }
+    private MappedByteBuffer map(int slot, int size) throws IOException
+    {
+        MappedByteBuffer m = slots[slot];
+        if (m != null && m.capacity() >= size)
+            return m;
+        long capacity = ((long)size + pageSize - 1) / pageSize * pageSize;
+        if (m != null)
+            capacity = Math.max(capacity, Math.min(Integer.MAX_VALUE, (long)m.capacity() * 2));
+        try (FileChannel ch = FileChannel.open(slotFiles[slot], StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            m = ch.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        slots[slot] = m;
+        return m;
+    }
+    private static int crc(long seq, int stateVersion, byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        ByteBuffer h = ByteBuffer.allocate(16);
+        h.putLong(seq).putInt(stateVersion).putInt(data.length).flip();
+        crc.update(h);
+        crc.update(data, 0, data.length);
+        return (int)crc.getValue();
+    }
+    
+    synchronized long seq()
+    {
+        return seq;
+    }
+}
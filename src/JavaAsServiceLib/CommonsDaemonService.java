@@ -3,8 +3,28 @@ package JavaAsServiceLib;
 import CommonLib.Common;
 import CommonLib.ConsoleInputInterpreter;
 import CommonLib.XmlSettingsBase;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  *
@@ -33,11 +53,236 @@ public abstract class CommonsDaemonService {
         this.jarFileName = jarFileName;
         this.requiredSettingsFromFile = requiredSettingsFromFile;
         this.settingsFromFile = requiredSettingsFromFile == null || requiredSettingsFromFile.length == 0 ? null : new XmlSettingsBase(jarFileName, jarFileName + ".settings", true, requiredSettingsFromFile);
-        System.out.println("JavaAsServiceLib.CommonsDaemonService.<init>() StackTrace: " + Common.getStackTrace(0));
+        this.settings = settingsFromFile;
+        addBuiltinManagementCommands();
+        if (!harnessMode)
+            System.out.println("JavaAsServiceLib.CommonsDaemonService.<init>() StackTrace: " + Common.getStackTrace(0));
     }
 
+    private volatile XmlSettingsBase settings;
+    /**
+     * Current settings snapshot: {@code settingsFromFile}, or last reloaded settings (see {@code setSettingsReload}). 
+     * Snapshot is never changed, reload publishes new one; read it once per {@code DoWork()} call to get consistent values.
+     */
+    public final XmlSettingsBase settings()
+    {
+        return settings;
+    }
+    public interface SettingsListener
+    {
+        void onSettingsChanged(XmlSettingsBase oldSettings, XmlSettingsBase newSettings) throws Exception;
+    }
+    private final CopyOnWriteArrayList<SettingsListener> settingsListeners = new CopyOnWriteArrayList<>();
+    /**
+     * Adds listener called after settings reload (in settings watcher thread), e.g. to retune workers 
+     * ({@code ServiceWorkerThread.retuneLoopSleeps}, {@code AdaptivePacer.retune}).
+     */
+    protected final void addSettingsListener(SettingsListener listener)
+    {
+        settingsListeners.add(Objects.requireNonNull(listener, "MUSTNEVERTHROW: listener is null!"));
+    }
+    private volatile boolean settingsReload;
+    private SettingsWatcher settingsWatcher;
+    private final Object settingsReloadLOCK = new Object();
+    private final long settingsReloadQuietPeriod_ms = 500;
+    /**
+     * Turns on reload of settings file, when it is changed (new snapshot is published by {@code settings()}, 
+     * then settings listeners are called). Needs {@code requiredSettingsFromFile}. 
+     * Must be called in constructor or {@code onServiceStart()}.
+     */
+    protected final void setSettingsReload(boolean enabled)
+    {
+        if (enabled && settingsFromFile == null)
+            throw new Error("MUSTNEVERTHROW: settings reload needs requiredSettingsFromFile!");
+        this.settingsReload = enabled;
+    }
+    /**
+     * Reads settings file again and publishes new snapshot. If file is invalid, old snapshot is kept.
+     * 
+     * @return true if new snapshot was published
+     */
+    public final boolean reloadSettings()
+    {
+        if (settingsFromFile == null)
+            return false;
+        synchronized (settingsReloadLOCK)
+        {
+            XmlSettingsBase newSettings;
+            try
+            {
+                newSettings = new XmlSettingsBase(jarFileName, jarFileName + ".settings", true, requiredSettingsFromFile);
+            }
+            catch (Throwable th)
+            {
+                svcErrLog.write(th, Common.getCurrentSTE(), "error reloading settings, old settings are kept");
+                return false;
+            }
+            XmlSettingsBase oldSettings = settings;
+            settings = newSettings;
+            svcMsgLog.write("CommonsDaemonService.reloadSettings", "Settings reloaded.");
+            for (SettingsListener l : settingsListeners)
+                try { l.onSettingsChanged(oldSettings, newSettings); } catch (Throwable th) { svcErrLog.write(th, Common.getCurrentSTE(), "Error onSettingsChanged()"); }
+            return true;
+        }
+    }
+    /**
+     * Absolute path of file in service folder: folder of service jar ({@code jarFileName} in class path, or jar of service class), 
+     * where settings file is loaded from. Does not depend on working directory (under procrun it is usually system32).
+     */
+    final Path serviceFile(String fileName)
+    {
+        return serviceDirectory().resolve(fileName);
+    }
+    private Path serviceDirectory()
+    {
+        try
+        {
+            for (String e : System.getProperty("java.class.path", "").split(File.pathSeparator))
+            {
+                Path p = Paths.get(e).toAbsolutePath();
+                Path n = p.getFileName();
+                if (n != null && (n.toString().equalsIgnoreCase(jarFileName) || n.toString().equalsIgnoreCase(jarFileName + ".jar")))
+                    return p.getParent();
+            }
+            CodeSource cs = getClass().getProtectionDomain().getCodeSource();
+            if (cs != null && cs.getLocation() != null)
+            {
+                Path p = Paths.get(cs.getLocation().toURI()).toAbsolutePath();
+                return Files.isDirectory(p) ? p : p.getParent();
+            }
+        }
+        catch (Exception ex) { }
+        return Paths.get("").toAbsolutePath();
+    }
     private ConsoleInputInterpreter.CommandHandler[] consoleCommands;
     protected final void setConsoleCommands(ConsoleInputInterpreter.CommandHandler[] consoleCommands) { this.consoleCommands = consoleCommands; }
+    ConsoleInputInterpreter.CommandHandler[] consoleCommands() { return consoleCommands; }
+
+    private final ManagementChannel managementChannel = new ManagementChannel();
+    private int managementPort = -1;
+    ManagementChannel managementChannel() { return managementChannel; }
+    /**
+     * Turns on management endpoint: management commands (the same as console commands) are served 
+     * to local TCP clients on loopback interface (see {@code ManagementChannel}). 
+     * Clients authenticate with token from file {@code <jarFileName>.management.token} in service folder, readable only by service account. 
+     * Must be called in constructor or {@code onServiceStart()}.
+     * 
+     * @param port TCP port, 0 - any free port (see {@code managementPort()}), -1 - endpoint is off
+     */
+    protected final void setManagementPort(int port)
+    {
+        if (port < -1 || port > 65535)
+            throw new Error("MUSTNEVERTHROW: wrong port!");
+        this.managementPort = port;
+    }
+    /**
+     * @return port of management endpoint, or -1 if it is off
+     */
+    public final int managementPort()
+    {
+        return managementChannel.port();
+    }
+    /**
+     * Adds management command (available in console and management endpoint). Command runs in its own thread.
+     */
+    protected final void addManagementCommand(String name, String description, ManagementChannel.Command command)
+    {
+        managementChannel.addCommand(name, description, false, command);
+    }
+    private void addBuiltinManagementCommands()
+    {
+        managementChannel.addCommand("exit", "Correct exit", false, (args)->
+        {
+            Common.setTimeout(()->
+            {
+                try
+                {
+                    try
+                    {
+                        serviceStopWait();
+                    }
+                    finally
+                    {
+                        serviceExitAndTryRestart(false, "exit command entered");
+                    }    
+                }
+                catch (ServiceExitError e) { } //hosted service, or service in harness
+            }, 0, true);
+            return "Service is exiting.";
+        });
+        managementChannel.addCommand("vars", "Show handler vars", false, (args)->
+        {
+            return Common.getAllFieldValues(this, "(" + jarFileName + ")");
+        });
+        managementChannel.addCommand("status", "Show service workers status", true, (args)->
+        {
+            return statusToString();
+        });
+        managementChannel.addCommand("stats", "Show service workers metrics", true, (args)->
+        {
+            return workersMetricsToString();
+        });
+        managementChannel.addCommand("reload", "Reload settings file", false, (args)->
+        {
+            return reloadSettings() ? "Settings reloaded." : "Settings were not reloaded.";
+        });
+        managementChannel.addCommand("help", "Show management commands", true, (args)->
+        {
+            return managementChannel.help();
+        });
+    }
+
+    /**
+     * host running this service together with other services (see {@code CommonsDaemonServiceHost}), or null
+     */
+    volatile CommonsDaemonServiceHost host;
+    /**
+     * name of service in host (services of the same class get different names), or null
+     */
+    volatile String hostedName;
+    private static volatile boolean hostMode;
+    /**
+     * several services in this JVM: {@code setSingletonClass()} of descendants is ignored
+     */
+    static void enterHostMode()
+    {
+        hostMode = true;
+    }
+    private static volatile boolean harnessMode;
+    /**
+     * service is driven by {@code ServiceHarness}: no console and no constructor stack trace, {@code setSingletonClass()} of descendants is ignored 
+     * (harness sets singleton class itself, see {@code resetSingleton})
+     */
+    static void setHarnessMode(boolean enabled)
+    {
+        harnessMode = enabled;
+    }
+    /**
+     * Process exit of standalone service ({@code System.exit} by default). 
+     * If handler returns (harness), main service cycle is unwound with {@code ServiceExitError}.
+     */
+    static volatile IntConsumer exitHandler = System::exit;
+    private static ScheduledExecutorService standaloneScheduler;
+    private static synchronized ScheduledExecutorService standaloneScheduler()
+    {
+        if (standaloneScheduler == null)
+            standaloneScheduler = Executors.newSingleThreadScheduledExecutor((r) -> 
+            {
+                Thread t = new Thread(r, "CommonsDaemonService scheduler");
+                t.setDaemon(true);
+                return t;
+            });
+        return standaloneScheduler;
+    }
+    /**
+     * Scheduler for service timers; shared by all services when service runs in {@code CommonsDaemonServiceHost}. 
+     * Tasks must be short, long work belongs to workers.
+     */
+    protected final ScheduledExecutorService scheduler()
+    {
+        CommonsDaemonServiceHost h = host;
+        return h != null ? h.scheduler() : standaloneScheduler();
+    }
 
     
     private static volatile Class<? extends CommonsDaemonService> singletonClass;
@@ -45,6 +290,8 @@ public abstract class CommonsDaemonService {
     private static final Object singletonLOCK = new Object();
     protected static void setSingletonClass(Class<? extends CommonsDaemonService> c) 
     {
+        if (hostMode || harnessMode)
+            return;
         synchronized (singletonLOCK)
         {
             if (singletonClass != null)
@@ -69,6 +316,31 @@ public abstract class CommonsDaemonService {
             singleton = v; 
         }
     }
+    /**
+     * forgets stopped singleton, so that service can be started again in the same JVM (for benchmarks)
+     */
+    static void releaseSingleton() 
+    { 
+        synchronized (singletonLOCK)
+        {
+            singleton = null; 
+        }
+    }
+    /**
+     * forgets singleton and sets singleton class (harness runs services of different classes one after another)
+     */
+    static void resetSingleton(Class<? extends CommonsDaemonService> c) 
+    { 
+        synchronized (singletonLOCK)
+        {
+            singleton = null; 
+            singletonClass = c; 
+        }
+    }
+    static CommonsDaemonService singleton() 
+    { 
+        return singleton; 
+    }
     private static void chkSingletonClass(Class<? extends CommonsDaemonService> c)
     {
         if (singletonClass == null)
@@ -129,9 +401,14 @@ public abstract class CommonsDaemonService {
         
         singleton.serviceStart_internal();
 
+        CommonsDaemonService svc = singleton;
         Thread t = new Thread(() -> 
         { 
-            singleton.startServiceWorker_and_runMainServiceCycle(); 
+            try
+            {
+                svc.startServiceWorker_and_runMainServiceCycle(); 
+            }
+            catch (ServiceExitError e) { } //service in harness
         });
         t.setName("CommonsDaemonService main thread");                
         t.start();
@@ -167,6 +444,8 @@ public abstract class CommonsDaemonService {
     public static class CommonsDaemonServiceStartInfo 
     { 
         public final Common.Log svcmsglog;  public final Common.Log svcerrlog;  public final ServiceWorkerThread worker; 
+        private final ServiceWorkerThread[] workers;
+        private final Common.Func<ServiceWorkerThread> workerFactory;
         /**
         * Init class {@code CommonsDaemonService} 
         * 
@@ -175,29 +454,166 @@ public abstract class CommonsDaemonService {
         * @param worker {@code ServiceWorkerThread} buisness-logic container. Runs in separate thread.
         */
         public CommonsDaemonServiceStartInfo(Common.Log svcmsglog, Common.Log svcerrlog, ServiceWorkerThread worker) 
+        {   this(svcmsglog, svcerrlog, new ServiceWorkerThread[] { Objects.requireNonNull(worker, "MUSTNEVERTHROW: worker is null!") }); } 
+        /**
+        * Init class {@code CommonsDaemonService} with pool of workers
+        * 
+        * @param svcmsglog Service log
+        * @param svcerrlog Service error log
+        * @param workers {@code ServiceWorkerThread} buisness-logic containers. Each runs in separate thread. First one is the primary worker ({@code worker} field).
+        */
+        public CommonsDaemonServiceStartInfo(Common.Log svcmsglog, Common.Log svcerrlog, ServiceWorkerThread[] workers) 
+        {   this(svcmsglog, svcerrlog, workers, null); } 
+        /**
+        * Init class {@code CommonsDaemonService} with {@code workerCount} replicas of one worker
+        * 
+        * @param svcmsglog Service log
+        * @param svcerrlog Service error log
+        * @param workerCount count of worker replicas
+        * @param workerFactory creates new {@code ServiceWorkerThread} instance on every call. Also used to rebuild worker on in-process restart.
+        */
+        public CommonsDaemonServiceStartInfo(Common.Log svcmsglog, Common.Log svcerrlog, int workerCount, Common.Func<ServiceWorkerThread> workerFactory) 
+        {   this(svcmsglog, svcerrlog, createWorkers(workerCount, workerFactory), workerFactory); } 
+        private CommonsDaemonServiceStartInfo(Common.Log svcmsglog, Common.Log svcerrlog, ServiceWorkerThread[] workers, Common.Func<ServiceWorkerThread> workerFactory) 
         {   this.svcmsglog = Objects.requireNonNull(svcmsglog, "MUSTNEVERTHROW: svcmsglog is null!"); 
             this.svcerrlog = Objects.requireNonNull(svcerrlog, "MUSTNEVERTHROW: svcerrlog is null!"); 
-            this.worker =    Objects.requireNonNull(worker,    "MUSTNEVERTHROW: worker is null!"); } 
+            Objects.requireNonNull(workers, "MUSTNEVERTHROW: workers is null!");
+            if (workers.length == 0)
+                throw new Error("MUSTNEVERTHROW: workers is empty!");
+            this.workers = workers.clone();
+            for (int n = 0; n < this.workers.length; n++)
+            {
+                Objects.requireNonNull(this.workers[n], "MUSTNEVERTHROW: workers[" + n + "] is null!");
+                for (int m = 0; m < n; m++)
+                    if (this.workers[m] == this.workers[n])
+                        throw new Error("MUSTNEVERTHROW: workers[" + n + "] is the same instance as workers[" + m + "]!");
+                if (this.workers.length > 1)
+                    this.workers[n].threadNameSuffix = " #" + n;
+            }
+            this.worker = this.workers[0]; 
+            this.workerFactory = workerFactory; } 
+        private static ServiceWorkerThread[] createWorkers(int workerCount, Common.Func<ServiceWorkerThread> workerFactory)
+        {
+            Objects.requireNonNull(workerFactory, "MUSTNEVERTHROW: workerFactory is null!");
+            if (workerCount <= 0)
+                throw new Error("MUSTNEVERTHROW: workerCount must be positive!");
+            ServiceWorkerThread[] r = new ServiceWorkerThread[workerCount];
+            for (int n = 0; n < workerCount; n++)
+                r[n] = workerFactory.call();
+            return r;
+        }
+        public int workerCount() { return workers.length; }
+        public ServiceWorkerThread worker(int index) { return workers[index]; }
     }
     private CommonsDaemonServiceStartInfo si;
-    private void serviceStart_internal()
+    /**
+     * current workers (copy-on-write: array is replaced when worker is restarted in-process)
+     */
+    private volatile ServiceWorkerThread[] workers;
+    private AsyncLog svcMsgLog;
+    private AsyncLog svcErrLog;
+    private int asyncLogCapacity;
+    private AsyncLog.OverflowPolicy asyncLogOverflowPolicy;
+    private int asyncLogSampleEvery;
+    private final long asyncLogFlushTimeOut_ms = 5000;
+    /**
+     * Turns on asynchronous writing of service logs and logs of workers, that did not turn it on themselves 
+     * (see {@code AsyncLog}). Must be called in constructor or {@code onServiceStart()}.
+     * 
+     * @param capacity buffer capacity (records) of every log
+     * @param overflowPolicy what to do with new record when buffer is full
+     * @param sampleEvery for {@code AsyncLog.OverflowPolicy.SAMPLE}: every {@code sampleEvery}-th overflowing record is kept
+     */
+    protected final void setAsyncLogging(int capacity, AsyncLog.OverflowPolicy overflowPolicy, int sampleEvery)
+    {
+        if (capacity <= 0)
+            throw new Error("MUSTNEVERTHROW: capacity must be positive!");
+        this.asyncLogOverflowPolicy = Objects.requireNonNull(overflowPolicy, "MUSTNEVERTHROW: overflowPolicy is null!");
+        this.asyncLogSampleEvery = sampleEvery;
+        this.asyncLogCapacity = capacity;
+    }
+    /**
+     * Service log (asynchronous if {@code setAsyncLogging} was called)
+     */
+    public AsyncLog svcMsgLog()
+    {
+        return svcMsgLog;
+    }
+    /**
+     * Service error log (asynchronous if {@code setAsyncLogging} was called)
+     */
+    public AsyncLog svcErrLog()
+    {
+        return svcErrLog;
+    }
+    private final StartupPhases startupPhases = new StartupPhases();
+    private long startupStart_ns;
+    private long onServiceStartTime_ns;
+    void serviceStart_internal()
     {
         System.out.println(Common.NowToString() + "    " + "Service process started");
+        startupStart_ns = System.nanoTime();
+        onServiceStartPhases(startupPhases);
+        try
+        {
+            startupPhases.run();
+        }
+        catch (StartupPhases.StartupPhaseException ex)
+        {
+            System.out.println(Common.NowToString() + "    " + "Service startup failed: startup phases " + startupPhases.report());
+            throw ex;
+        }
+        long onServiceStart_ns = System.nanoTime();
         si = onServiceStart();
+        onServiceStartTime_ns = System.nanoTime() - onServiceStart_ns;
         if (si == null)
             throw new Error("MUSTNEVERTHROW: onServiceStart() must return filled CommonsDaemonServiceStartInfo, not null!");
-        si.svcmsglog.write("CommonsDaemonService.serviceStart", "Service process init complete.");
+        workers = si.workers;
+        if (restartPolicy != null && si.workerFactory == null && !isWorkerRestartOverridden())
+            throw new Error("MUSTNEVERTHROW: in-process restart (setInProcessRestart) needs workerFactory of CommonsDaemonServiceStartInfo, or onServiceWorkerRestart() override!");
+        svcMsgLog = asyncLogCapacity > 0 ? new AsyncLog(si.svcmsglog, asyncLogCapacity, asyncLogOverflowPolicy, asyncLogSampleEvery) : new AsyncLog(si.svcmsglog);
+        svcErrLog = asyncLogCapacity > 0 ? new AsyncLog(si.svcerrlog, asyncLogCapacity, asyncLogOverflowPolicy, asyncLogSampleEvery) : new AsyncLog(si.svcerrlog);
+        if (settingsReload)
+            try
+            {
+                settingsWatcher = new SettingsWatcher(serviceFile(jarFileName + ".settings"), settingsReloadQuietPeriod_ms, this::reloadSettings);
+                settingsWatcher.start();
+            }
+            catch (Throwable th)
+            {
+                svcErrLog.write(th, Common.getCurrentSTE(), "error starting settings watcher, settings will not be reloaded");
+            }
+        if (managementPort >= 0)
+            try
+            {
+                String hn = hostedName;
+                managementChannel.start(managementPort, svcErrLog, serviceFile(jarFileName + (hn != null ? "." + hn : "") + ".management.token"));
+                svcMsgLog.write("CommonsDaemonService.serviceStart", "Management endpoint listens on port " + managementChannel.port() + " (client token in " + managementChannel.tokenFile() + ").");
+            }
+            catch (Throwable th)
+            {
+                svcErrLog.write(th, Common.getCurrentSTE(), "error starting management endpoint on port " + managementPort);
+            }
+        svcMsgLog.write("CommonsDaemonService.serviceStart", "Service process init complete.");
     }    
     
     
-    private void serviceStop_internal() {
-        si.svcmsglog.write("CommonsDaemonService.serviceStop", "Service stopping by OS.");
+    void serviceStop_internal() {
+        svcMsgLog.write("CommonsDaemonService.serviceStop", "Service stopping by OS.");
         if (onServiceStopping != null) 
-            try { onServiceStopping.call(); } catch (Throwable th) { si.svcerrlog.write(th, Common.getCurrentSTE(), "Error onServiceStopping"); }
+            try { onServiceStopping.call(); } catch (Throwable th) { svcErrLog.write(th, Common.getCurrentSTE(), "Error onServiceStopping"); }
         serviceStopWait();
+        if (settingsWatcher != null)
+            settingsWatcher.stop();
+        managementChannel.close();
+        unregisterWorkersMBeans();
         if (onServiceStopped != null) 
-            try { onServiceStopped.call(); } catch (Throwable th) { si.svcerrlog.write(th, Common.getCurrentSTE(), "Error onServiceStopped"); }
-        si.svcmsglog.write("CommonsDaemonService.serviceStop", "Service stopping by OS: service stopped.", true);
+            try { onServiceStopped.call(); } catch (Throwable th) { svcErrLog.write(th, Common.getCurrentSTE(), "Error onServiceStopped"); }
+        AsyncLog.flushAll(asyncLogFlushTimeOut_ms);
+        svcMsgLog.write("CommonsDaemonService.serviceStop", "Service stopping by OS: service stopped.", true);
+        //writer threads of service logs are stopped (in-process restart in host, harness)
+        svcMsgLog.close(asyncLogFlushTimeOut_ms);
+        svcErrLog.close(asyncLogFlushTimeOut_ms);
         System.out.println(Common.NowToString() + "    " + "Service stopping by OS: service stopped.");
     }
 
@@ -207,35 +623,175 @@ public abstract class CommonsDaemonService {
     
     private void startWorker() throws Exception
     {
-        si.worker.start();
+        for (int n = 0; n < workers.length; n++)
+        {
+            ServiceWorkerThread w = workers[n];
+            prepareWorker(w);
+            try
+            {
+                w.start();
+            }
+            catch (Throwable th)
+            {
+                if (restartPolicy == null)
+                    throw th;
+                //main service cycle restarts it
+                svcErrLog.write(th, Common.getCurrentSTE(), "error starting service worker thread " + workerDescription(n));
+            }
+        }
     }
+    /**
+     * sends stop-signal to all workers and waits until their stop handlers and shutdown hooks are done; 
+     * handlers and hooks of different workers run in parallel
+     */
     public void worker_signalStop()
     {
-        si.worker.signalStop();
+        CountDownLatch signaled = worker_signalStopAsync();
+        boolean interrupted = false;
+        for (;;)
+            try
+            {
+                signaled.await();
+                break;
+            }
+            catch (InterruptedException iex)
+            {
+                interrupted = true;
+            }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+    /**
+     * sends stop-signal to every worker in own daemon thread (slow handler or hook does not block caller)
+     * 
+     * @return latch counted down (and lifecycle changed) when {@code signalStop()} of a worker returns
+     */
+    private CountDownLatch worker_signalStopAsync()
+    {
+        ServiceWorkerThread[] ws = workers;
+        CountDownLatch signaled = new CountDownLatch(ws.length);
+        for (ServiceWorkerThread w : ws)
+        {
+            Thread t = ServiceThreads.newThread(() -> 
+            {
+                try
+                {
+                    w.signalStop();
+                }
+                finally
+                {
+                    signaled.countDown();
+                    lifecycleChanged();
+                }
+            }, "CommonsDaemonService worker stop-signal thread", false);
+            t.setDaemon(true);
+            t.start();
+        }
+        return signaled;
+    }
+    /**
+     * @return true if main service cycle is left and all workers are stopped (nothing of service is running)
+     */
+    boolean isServiceStopped()
+    {
+        return !mainServiceCycle_running && (workers == null || isWorkerStopped());
     }
     private boolean isWorkerStopped()
     {
-        return si.worker.isStopped();
+        for (ServiceWorkerThread w : workers)
+            if (!w.isStopped())
+                return false;
+        return true;
+    }
+    private void prepareWorker(ServiceWorkerThread w)
+    {
+        w.lifecycleListener = this::lifecycleChanged;
+        CommonsDaemonServiceHost h = host;
+        if (h != null)
+            w.sharedTaskExecutor = h.taskExecutor();
+        if (asyncLogCapacity > 0 && w.msgLog() != null && !w.msgLog().isAsync())
+            w.enableAsyncLogging(asyncLogCapacity, asyncLogOverflowPolicy, asyncLogSampleEvery);
+    }
+    private boolean isWorkerStopPollingNeeded()
+    {
+        for (ServiceWorkerThread w : workers)
+            if (w.isStopPollingNeeded())
+                return true;
+        return false;
+    }
+    /**
+     * @return index of first worker that is stopped, or -1 if all workers are running
+     */
+    private int firstStoppedWorker()
+    {
+        for (int n = 0; n < workers.length; n++)
+            if (workers[n].isStopped())
+                return n;
+        return -1;
     }
     public boolean worker_hasStopSignal()
     {
-        return si.worker.hasStopSignal();
+        for (ServiceWorkerThread w : workers)
+            if (w.hasStopSignal())
+                return true;
+        return false;
+    }
+    /**
+     * calls {@code wakeUp()} of all workers
+     */
+    public void worker_wakeUp()
+    {
+        for (ServiceWorkerThread w : workers)
+            w.wakeUp();
+    }
+    public int worker_count()
+    {
+        return workers.length;
+    }
+    public ServiceWorkerThread worker(int index)
+    {
+        return workers[index];
     }
+    /**
+     * primary worker ({@code CommonsDaemonServiceStartInfo.worker}) log
+     */
     public Common.Log worker_msgLog()
     {
-        return si.worker.workermsgLog;
+        return workers[0].workermsgLog;
     }
+    /**
+     * primary worker ({@code CommonsDaemonServiceStartInfo.worker}) exception log
+     */
     public Common.Log worker_excLog()
     {
-        return si.worker.workerexcLog;
+        return workers[0].workerexcLog;
     }
+    /**
+     * adds addon to primary worker ({@code CommonsDaemonServiceStartInfo.worker})
+     */
+    private final List<Common.Func<Boolean>> primaryWorker_isStopped_addons = new CopyOnWriteArrayList<>();
+    private final List<Common.Action> primaryWorker_onSignalStops = new CopyOnWriteArrayList<>();
     public void worker_addIsStopped_addon(Common.Func<Boolean> isStopped_addon)
     {
-        si.worker.isStopped_addon.add(isStopped_addon);
+        primaryWorker_isStopped_addons.add(isStopped_addon);
+        ArrayList<Common.Func<Boolean>> l = workers[0].isStopped_addon;
+        synchronized (l)
+        {
+            l.add(isStopped_addon);
+        }
+        workers[0].updateStopState();
     }
+    /**
+     * adds handler to primary worker ({@code CommonsDaemonServiceStartInfo.worker})
+     */
     public void worker_addOnSignalStop(Common.Action onSignalStop)
     {
-        si.worker.onSignalStop.add(onSignalStop);
+        primaryWorker_onSignalStops.add(onSignalStop);
+        ArrayList<Common.Action> l = workers[0].onSignalStop;
+        synchronized (l)
+        {
+            l.add(onSignalStop);
+        }
     }
     /**
      * service initialization CommonsDaemonServiceStartInfo
@@ -243,47 +799,151 @@ public abstract class CommonsDaemonService {
      * @return intiated objects {@code CommonsDaemonService} 
      */
     protected abstract CommonsDaemonServiceStartInfo onServiceStart();
+    /**
+     * Declares service init phases (see {@code StartupPhases}), e.g. connection pools. 
+     * Called before {@code onServiceStart()}; phases are run (independent ones in parallel) 
+     * and done before {@code onServiceStart()} is called. 
+     * Timing of phases is written to service log at the end of service startup.
+     */
+    protected void onServiceStartPhases(StartupPhases phases) { }
+    
+    private volatile WorkerRestartPolicy restartPolicy;
+    /**
+     * Turns on in-process restart: crashed or failed to start worker is rebuilt (see {@code onServiceWorkerRestart}) 
+     * and started again in the same JVM, until restart budget of {@code policy} is exhausted. 
+     * After that, and without the policy, service exits with restart signal to OS service manager. 
+     * Worker, that didnt stop in 5 min after stop-signal, still causes exit (its thread can not be killed). 
+     * Only crashed worker is rebuilt, so service needs {@code workerFactory} of {@code CommonsDaemonServiceStartInfo} 
+     * or {@code onServiceWorkerRestart()} override. Must be called in constructor or {@code onServiceStart()}.
+     * 
+     * @param policy restart policy, or null to turn off
+     */
+    protected final void setInProcessRestart(WorkerRestartPolicy policy)
+    {
+        this.restartPolicy = policy;
+    }
+    /**
+     * Creates new worker to replace crashed one. 
+     * By default uses {@code workerFactory} of {@code CommonsDaemonServiceStartInfo}; 
+     * in-process restart of service without factory needs this method to be overridden (checked on service start).
+     * 
+     * @param workerIndex index of worker to be replaced
+     * @return new not started worker
+     */
+    protected ServiceWorkerThread onServiceWorkerRestart(int workerIndex)
+    {
+        if (si.workerFactory == null)
+            throw new Error("MUSTNEVERTHROW: in-process restart needs workerFactory of CommonsDaemonServiceStartInfo, or onServiceWorkerRestart() override!");
+        return si.workerFactory.call();
+    }
+    private boolean isWorkerRestartOverridden()
+    {
+        for (Class<?> c = getClass(); c != CommonsDaemonService.class; c = c.getSuperclass())
+            try
+            {
+                c.getDeclaredMethod("onServiceWorkerRestart", int.class);
+                return true;
+            }
+            catch (NoSuchMethodException ex) { }
+        return false;
+    }
     protected Common.Action onServiceStopping;
     protected Common.Action onServiceStoppingTimeout;
     protected Common.Action onServiceStopped;
     
    
     private volatile boolean mainServiceCycle_running;
+    boolean isMainServiceCycleRunning() { return mainServiceCycle_running; }
     private volatile boolean serviceStoping;
-    private Long scheduledExit;
+    private long[] scheduledExit;
     private final long scheduledExitTimeOut_sec = 5 * 60;
-    private void startServiceWorker_and_runMainServiceCycle()
+    private final long serviceStopTimeOut_sec = 30;
+    private final long stopPolling_ms = 10;
+    
+    private final Object lifecycleLOCK = new Object();
+    private long lifecycleVersion;
+    /**
+     * wakes main service cycle and {@code serviceStopWait()}: service stopping, main service cycle exit, worker start/stop-signal/exit
+     */
+    private void lifecycleChanged()
     {
-        try
+        synchronized (lifecycleLOCK)
         {
-            ConsoleInputInterpreter.start(Common.ConcatArray(new ConsoleInputInterpreter.CommandHandler[] {
-                new ConsoleInputInterpreter.CommandHandler("exit", "Correct exit", false, (a)->
-                {
-                    Common.setTimeout(()->
-                    {
-                        try
-                        {
-                            serviceStopWait();
-                        }
-                        finally
-                        {
-                            serviceExitAndTryRestart(false, "exit command entered");
-                        }    
-                    }, 0, true);
-                }),                
-                new ConsoleInputInterpreter.CommandHandler("vars", "Show handler vars", false, (a)->
-                {
-                    System.out.println(Common.getAllFieldValues(this, "(" + jarFileName + ")"));
-                })
-            }, consoleCommands));
-        }
-        catch (Throwable th) {
-            si.svcerrlog.write(th, Common.getCurrentSTE(), "error starting ConsoleInputInterpreter (ConsoleInputInterpreter.start)");
+            lifecycleVersion++;
+            lifecycleLOCK.notifyAll();
         }
-
-        try
+    }
+    private long lifecycleVersion()
+    {
+        synchronized (lifecycleLOCK)
         {
-            startWorker();
+            return lifecycleVersion;
+        }
+    }
+    /**
+     * blocks until lifecycle changes after {@code seenVersion} was read, or until {@code deadline_ns} ({@code ServiceClock.current().nanoTime()} based; {@code Long.MAX_VALUE} - no deadline)
+     * 
+     * @return current lifecycle version
+     */
+    private long awaitLifecycleChange(long seenVersion, long deadline_ns) throws InterruptedException
+    {
+        synchronized (lifecycleLOCK)
+        {
+            while (lifecycleVersion == seenVersion)
+            {
+                if (deadline_ns == Long.MAX_VALUE)
+                    lifecycleLOCK.wait();
+                else
+                {
+                    ServiceClock clock = ServiceClock.current();
+                    long rest = deadline_ns - clock.nanoTime();
+                    if (rest <= 0)
+                        break;
+                    clock.timedWait(lifecycleLOCK, rest);
+                }
+            }
+            return lifecycleVersion;
+        }
+    }
+    private static long minDeadline(long deadline1_ns, long deadline2_ns)
+    {
+        if (deadline1_ns == Long.MAX_VALUE)
+            return deadline2_ns;
+        if (deadline2_ns == Long.MAX_VALUE)
+            return deadline1_ns;
+        return deadline1_ns - deadline2_ns < 0 ? deadline1_ns : deadline2_ns;
+    }
+    void startServiceWorker_and_runMainServiceCycle()
+    {
+        //hosted service: console commands of all services are registered by host
+        if (host == null && !harnessMode)
+        {
+            try
+            {
+                ArrayList<ConsoleInputInterpreter.CommandHandler> commands = new ArrayList<>();
+                for (String name : managementChannel.commandNames())
+                    if (!name.equals("help"))
+                        commands.add(new ConsoleInputInterpreter.CommandHandler(name, managementChannel.description(name), false, (a)->
+                        {
+                            System.out.println(managementChannel.execute(name, ""));
+                        }));
+                ConsoleInputInterpreter.start(Common.ConcatArray(commands.toArray(new ConsoleInputInterpreter.CommandHandler[0]), consoleCommands));
+            }
+            catch (Throwable th) {
+                svcErrLog.write(th, Common.getCurrentSTE(), "error starting ConsoleInputInterpreter (ConsoleInputInterpreter.start)");
+            }
+        }
+
+        registerWorkersMBeans();
+
+        try
+        {
+            long workersStart_ns = System.nanoTime();
+            startWorker();
+            long end_ns = System.nanoTime();
+            svcMsgLog.write("CommonsDaemonService.serviceStart", "Service startup complete in " + TimeUnit.NANOSECONDS.toMillis(end_ns - startupStart_ns) + " ms: " 
+                + (startupPhases.isEmpty() ? "" : "startup phases " + startupPhases.report() + "\r\n") 
+                + "onServiceStart() " + TimeUnit.NANOSECONDS.toMillis(onServiceStartTime_ns) + " ms, workers start " + TimeUnit.NANOSECONDS.toMillis(end_ns - workersStart_ns) + " ms.");
         }
         catch (Throwable th)
         {
@@ -300,44 +960,257 @@ public abstract class CommonsDaemonService {
         try
         {
             mainServiceCycle_running = true;
+            scheduledExit = new long[workers.length];
+            boolean[] scheduled = new boolean[workers.length];
+            long seenVersion = lifecycleVersion();
             while(!serviceStoping)
             {    
-                if (isWorkerStopped())
-                    serviceExitAndTryRestart(false, "service worker thread interrupded.");
-                
-                if(scheduledExit == null && worker_hasStopSignal())
-                    scheduledExit = System.currentTimeMillis();
+                int stoppedWorker = firstStoppedWorker();
+                if (stoppedWorker >= 0)
+                {
+                    String reason = "service worker thread " + workerDescription(stoppedWorker) + " interrupded.";
+                    if (!tryRestartWorker(stoppedWorker, reason))
+                        serviceExitAndTryRestart(false, reason);
+                    scheduled[stoppedWorker] = false;
+                    seenVersion = lifecycleVersion();
+                    continue;
+                }
                 
-                if (scheduledExit != null && (scheduledExit + (scheduledExitTimeOut_sec * 1000)) < System.currentTimeMillis())
-                    serviceExitAndTryRestart(true, "stop-signal to service worker thread was sent, but it didnt stop in " + scheduledExitTimeOut_sec + " sec! Threads stacks: " + Common.getAllStackTraces());
+                long now = ServiceClock.current().nanoTime();
+                long deadline = Long.MAX_VALUE;
+                for (int n = 0; n < workers.length; n++)
+                {
+                    if(!scheduled[n] && workers[n].hasStopSignal())
+                    {
+                        scheduledExit[n] = now + TimeUnit.SECONDS.toNanos(scheduledExitTimeOut_sec);
+                        scheduled[n] = true;
+                    }
+
+                    if (scheduled[n])
+                    {
+                        if (scheduledExit[n] - now <= 0)
+                            serviceExitAndTryRestart(true, "stop-signal to service worker thread " + workerDescription(n) + " was sent, but it didnt stop in " + scheduledExitTimeOut_sec + " sec! Worker thread stack: " + workers[n].threadStackTrace());
+                        deadline = minDeadline(deadline, scheduledExit[n]);
+                    }
+                }
+                if (isWorkerStopPollingNeeded())
+                    deadline = minDeadline(deadline, now + TimeUnit.MILLISECONDS.toNanos(stopPolling_ms));
                 
-                Thread.sleep(100);
+                seenVersion = awaitLifecycleChange(seenVersion, deadline);
             }
         }
         catch(Throwable th)
         {
+            if (th instanceof ServiceExitError)
+                throw (ServiceExitError)th;
             serviceExitAndTryRestart(true, "service worker thread main loop error: " + th.toString() + "\r\n\r\n" + Common.getGoodStackTrace(th, 0));
         }
         finally
         {
             mainServiceCycle_running = false;
+            lifecycleChanged();
         }      
     }
-    private void serviceStopWait()
+    /**
+     * In-process restart of stopped worker (runs in main service cycle). 
+     * 
+     * @return false if restart is not possible (no restart policy, or its budget exhausted)
+     */
+    private boolean tryRestartWorker(int index, String reason) throws InterruptedException
     {
-        serviceStoping = true;
-        try { Thread.sleep(200); } catch (Throwable ex) { }
-        worker_signalStop();
-        for(int n = 0; mainServiceCycle_running || !isWorkerStopped(); n++)
+        WorkerRestartPolicy p = restartPolicy;
+        if (p == null)
+            return false;
+        while (!serviceStoping)
         {
-            if (n > 30 * 100)
+            long backoff_ms = p.nextRestartBackoff_ms();
+            if (backoff_ms < 0)
+            {
+                svcErrLog.write("CommonsDaemonService.tryRestartWorker", "in-process restart budget exhausted (" + p.maxRestarts + " restarts in " + p.budgetWindow_ms + " ms).");
+                return false;
+            }
+            svcErrLog.write("CommonsDaemonService.tryRestartWorker", "in-process restart of service worker thread " + workerDescription(index) + " in " + backoff_ms + " ms because of: " + reason);
+            
+            ServiceClock clock = ServiceClock.current();
+            long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff_ms);
+            long seenVersion = lifecycleVersion();
+            while (!serviceStoping && deadline - clock.nanoTime() > 0)
+                seenVersion = awaitLifecycleChange(seenVersion, deadline);
+            if (serviceStoping)
+                break;
+            
+            ServiceWorkerThread old = workers[index];
+            ServiceWorkerThread w;
+            try
+            {
+                w = onServiceWorkerRestart(index);
+                if (w == null)
+                    throw new Error("MUSTNEVERTHROW: onServiceWorkerRestart() must return new worker, not null!");
+                for (ServiceWorkerThread e : workers)
+                    if (e == w)
+                        throw new Error("MUSTNEVERTHROW: onServiceWorkerRestart() must return new worker, not running one!");
+            }
+            catch (Throwable th)
             {
-                si.svcerrlog.write("CommonsDaemonService.serviceStopWait", "service stopping timeout (mainServiceCycle_running=" + mainServiceCycle_running + ", isWorkerStopped()=" + isWorkerStopped() + ").", new String[][]{new String[]{"AllStackTraces", Common.getAllStackTraces()}} );
-                if (onServiceStoppingTimeout != null) 
-                    try { onServiceStoppingTimeout.call(); } catch (Throwable th) { si.svcerrlog.write(th, Common.getCurrentSTE(), "onServiceStoppingTimeout error"); }
+                reason = "error creating service worker thread: " + th.toString();
+                svcErrLog.write(th, Common.getCurrentSTE(), "error creating service worker thread " + workerDescription(index) + " (onServiceWorkerRestart)");
+                continue;
+            }
+            //service is stopping: new worker is not needed
+            if (serviceStoping)
                 break;
+            w.threadNameSuffix = old.threadNameSuffix;
+            prepareWorker(w);
+            if (index == 0)
+            {
+                w.isStopped_addon.addAll(primaryWorker_isStopped_addons);
+                w.onSignalStop.addAll(primaryWorker_onSignalStops);
+            }
+            ServiceWorkerThread[] newWorkers = workers.clone();
+            newWorkers[index] = w;
+            workers = newWorkers;
+            registerWorkerMBean(index);
+            lifecycleChanged();
+            try
+            {
+                w.start();
+                svcMsgLog.write("CommonsDaemonService.tryRestartWorker", "service worker thread " + workerDescription(index) + " restarted in-process (restarts since service start: " + p.totalRestarts() + ").");
+                return true;
+            }
+            catch (Throwable th)
+            {
+                reason = "error starting service worker thread: " + th.toString();
+                svcErrLog.write(th, Common.getCurrentSTE(), "error starting service worker thread " + workerDescription(index));
+            }
+        }
+        return true;
+    }
+    /**
+     * @return short status of service and every worker, one {@code key=value} per line (cheap, for monitoring polls)
+     */
+    public String statusToString()
+    {
+        ServiceWorkerThread[] ws = workers;
+        StringBuilder sb = new StringBuilder(128 + 256 * (ws == null ? 0 : ws.length));
+        sb.append("service=").append(jarFileName)
+            .append("\r\nmainServiceCycle_running=").append(mainServiceCycle_running)
+            .append("\r\nserviceStoping=").append(serviceStoping)
+            .append("\r\nworkers=").append(ws == null ? 0 : ws.length);
+        if (ws != null)
+            for (int n = 0; n < ws.length; n++)
+            {
+                ServiceWorkerMetrics m = ws[n].metrics();
+                String p = "\r\nworker." + n + ".";
+                sb.append(p).append("name=").append(ws[n].serviceName)
+                    .append(p).append("inwork=").append(m.isInwork())
+                    .append(p).append("stopSignaled=").append(m.isStopSignaled())
+                    .append(p).append("stopped=").append(m.isStopped())
+                    .append(p).append("iterations=").append(m.getIterations())
+                    .append(p).append("exceptions=").append(m.getExceptions())
+                    .append(p).append("lastIteration_us=").append(m.getLastIteration_us())
+                    .append(p).append("doWorkLatencyP99_us=").append(m.getDoWorkLatencyP99_us())
+                    .append(p).append("circuitState=").append(m.getCircuitState())
+                    .append(p).append("consecutiveFailures=").append(m.getConsecutiveFailures())
+                    .append(p).append("stallCount=").append(m.getStallCount());
+            }
+        return sb.toString();
+    }
+    public String workersMetricsToString()
+    {
+        StringBuilder sb = new StringBuilder("(" + jarFileName + ") workers metrics:");
+        for (int n = 0; n < workers.length; n++)
+            sb.append("\r\n  #").append(n).append(" ").append(workers[n].metrics());
+        return sb.toString();
+    }
+    private ObjectName[] workersMBeanNames;
+    /**
+     * service instance, that registered MBean with the name (services of one jar in host, restarted service)
+     */
+    private static final ConcurrentHashMap<ObjectName, CommonsDaemonService> mbeanOwners = new ConcurrentHashMap<>();
+    private void registerWorkersMBeans()
+    {
+        workersMBeanNames = new ObjectName[workers.length];
+        for (int n = 0; n < workers.length; n++)
+            registerWorkerMBean(n);
+    }
+    private void registerWorkerMBean(int index)
+    {
+        ObjectName[] names = workersMBeanNames;
+        if (names == null)
+            return;
+        try
+        {
+            MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+            String hn = hostedName;
+            ObjectName name = new ObjectName("JavaAsServiceLib:type=ServiceWorker,service=" + ObjectName.quote(jarFileName) + ",name=" + ObjectName.quote(hn != null ? hn : getClass().getName()) + ",worker=" + index);
+            CommonsDaemonService owner = mbeanOwners.putIfAbsent(name, this);
+            if (owner != null && owner != this)
+            {
+                svcErrLog.write("CommonsDaemonService.registerWorkerMBean", "service worker MBean " + name + " is registered by another service instance, MBean of worker " + workerDescription(index) + " is not registered.");
+                return;
             }
-            try { Thread.sleep(10); } catch (Throwable ex) { }
+            //restarted worker replaces MBean of old one
+            if (mbs.isRegistered(name))
+                mbs.unregisterMBean(name);
+            mbs.registerMBean(workers[index].metrics(), name);
+            names[index] = name;
+        }
+        catch (Throwable th) {
+            svcErrLog.write(th, Common.getCurrentSTE(), "error registering service worker MBean " + workerDescription(index));
+        }
+    }
+    private void unregisterWorkersMBeans()
+    {
+        ObjectName[] names = workersMBeanNames;
+        workersMBeanNames = null;
+        if (names != null)
+            try
+            {
+                MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+                for (ObjectName name : names)
+                    if (name != null && mbeanOwners.get(name) == this)
+                    {
+                        if (mbs.isRegistered(name))
+                            mbs.unregisterMBean(name);
+                        mbeanOwners.remove(name, this);
+                    }
+            }
+            catch (Throwable th) {
+                svcErrLog.write(th, Common.getCurrentSTE(), "error unregistering service workers MBeans");
+            }
+    }
+    private String workerDescription(int index)
+    {
+        return "\"" + workers[index].serviceName + "\"" + (workers.length > 1 ? " (worker #" + index + " of " + workers.length + ")" : "");
+    }
+    private void serviceStopWait()
+    {
+        ServiceClock clock = ServiceClock.current();
+        long deadline = clock.nanoTime() + TimeUnit.SECONDS.toNanos(serviceStopTimeOut_sec);
+        long seenVersion = lifecycleVersion();
+        serviceStoping = true;
+        lifecycleChanged();
+        CountDownLatch signaled = null;
+        try
+        {
+            //main service cycle must be left before workers get stop-signal, otherwise it takes stopped worker for crashed one
+            while (mainServiceCycle_running && deadline - clock.nanoTime() > 0)
+                seenVersion = awaitLifecycleChange(seenVersion, deadline);
+            //stop handlers and shutdown hooks (timeout 0 - no timeout) are limited by the same deadline
+            signaled = worker_signalStopAsync();
+            while ((signaled.getCount() > 0 || !isWorkerStopped()) && deadline - clock.nanoTime() > 0)
+                seenVersion = awaitLifecycleChange(seenVersion, isWorkerStopPollingNeeded() ? minDeadline(deadline, clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stopPolling_ms)) : deadline);
+        }
+        catch (InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        long signaling = signaled == null ? workers.length : signaled.getCount();
+        if (mainServiceCycle_running || !isWorkerStopped() || signaling > 0)
+        {
+            svcErrLog.write("CommonsDaemonService.serviceStopWait", "service stopping timeout (mainServiceCycle_running=" + mainServiceCycle_running + ", isWorkerStopped()=" + isWorkerStopped() + ", workers in signalStop()=" + signaling + ").", new String[][]{new String[]{"AllStackTraces", Common.getAllStackTraces()}} );
+            if (onServiceStoppingTimeout != null) 
+                try { onServiceStoppingTimeout.call(); } catch (Throwable th) { svcErrLog.write(th, Common.getCurrentSTE(), "onServiceStoppingTimeout error"); }
         }
     }
     private void serviceExitAndTryRestart(boolean iserr, String message)
@@ -345,13 +1218,39 @@ public abstract class CommonsDaemonService {
         try
         {
             String logmsg = "Service exit with restart signal" + (message != null ? " because of: " + message : ".");
-            (iserr ? si.svcerrlog : si.svcmsglog).write("CommonsDaemonService.serviceExitAndTryRestart", logmsg, true);
+            (iserr ? svcErrLog : svcMsgLog).write("CommonsDaemonService.serviceExitAndTryRestart", logmsg, true);
             (iserr ? System.err : System.out).println(Common.NowToString() + "    " + logmsg);
         }
         finally
         {
-            System.exit(123);
+            try
+            {
+                AsyncLog.flushAll(asyncLogFlushTimeOut_ms);
+            }
+            finally
+            {
+                exitWithRestartSignal();
+            }
+        }
+    }
+    private void exitWithRestartSignal()
+    {
+        CommonsDaemonServiceHost h = host;
+        if (h == null)
+        {
+            exitHandler.accept(123);
+            throw new ServiceExitError();
         }
+        h.onServiceExit(this);
+        throw new ServiceExitError();
+    }
+    /**
+     * hosted service exit: unwinds main service cycle (instead of {@code System.exit})
+     */
+    static final class ServiceExitError extends Error
+    {
+        private static final long serialVersionUID = 1L;
+        ServiceExitError() { super("service exit", null, false, false); }
     }
     
     
@@ -375,8 +1274,26 @@ public abstract class CommonsDaemonService {
     
     
     
-    public static final class Worker_DoWork_resultFlags { public final boolean doFastLoop; 
-        public Worker_DoWork_resultFlags(boolean doFastLoop) { this.doFastLoop = doFastLoop; }
+    /**
+     * {@code DoWork()} result (scheduling hints for next {@code DoWork()} call).
+     * 
+     * {@code doFastLoop} - call {@code DoWork()} again after short sleep; 
+     * {@code nextDelay_ms} - explicit delay before next call, overrides all other hints (negative - not set); 
+     * {@code itemsProcessed} - count of items processed by the call (negative - unknown); 
+     * {@code backlogRemains} - more work is waiting, call {@code DoWork()} again without delay.
+     */
+    public static final class Worker_DoWork_resultFlags { public final boolean doFastLoop; public final long nextDelay_ms; public final int itemsProcessed; public final boolean backlogRemains; 
+        public Worker_DoWork_resultFlags(boolean doFastLoop) { this(doFastLoop, -1, -1, false); }
+        public Worker_DoWork_resultFlags(boolean doFastLoop, long nextDelay_ms, int itemsProcessed, boolean backlogRemains) 
+        {   this.doFastLoop = doFastLoop; this.nextDelay_ms = nextDelay_ms; this.itemsProcessed = itemsProcessed; this.backlogRemains = backlogRemains; }
+        /**
+         * @return result with explicit delay before next {@code DoWork()} call
+         */
+        public static Worker_DoWork_resultFlags nextDelay(long nextDelay_ms) { return new Worker_DoWork_resultFlags(false, nextDelay_ms < 0 ? 0 : nextDelay_ms, -1, false); }
+        /**
+         * @return result of drain-style {@code DoWork()} call
+         */
+        public static Worker_DoWork_resultFlags processed(int itemsProcessed, boolean backlogRemains) { return new Worker_DoWork_resultFlags(false, -1, itemsProcessed, backlogRemains); }
     }
     
     /**
@@ -391,8 +1308,10 @@ public abstract class CommonsDaemonService {
         protected final String serviceName;
         protected final Common.Log workermsgLog;
         protected final Common.Log workerexcLog;
-        private final int normalLoopSleep_sec;
-        private final int exceptionLoopSleep_sec;
+        private volatile int normalLoopSleep_sec;
+        private volatile int exceptionLoopSleep_sec;
+        private static final long fastLoopSleep_ms = 300;
+        private static final long asyncLogCloseTimeOut_ms = 5000;
         protected ServiceWorkerThread(String serviceName, Common.Log workermsgLog, Common.Log workerexcLog)
         {
             this(serviceName, workermsgLog, workerexcLog, 0, 0);
@@ -402,10 +1321,112 @@ public abstract class CommonsDaemonService {
             this.serviceName = serviceName;
             this.workermsgLog = workermsgLog;
             this.workerexcLog = workerexcLog;
+            this.msgLog = workermsgLog == null ? null : new AsyncLog(workermsgLog);
+            this.excLog = workerexcLog == null ? null : new AsyncLog(workerexcLog);
             this.normalLoopSleep_sec = normalLoopSleep_sec <= 0 ? 10 : normalLoopSleep_sec;
             this.exceptionLoopSleep_sec = exceptionLoopSleep_sec <= 0 ? 10 * 60 : exceptionLoopSleep_sec;
+            this.retryPolicy = new FixedRetryPolicy(this.exceptionLoopSleep_sec * 1000L);
+            this.defaultRetryPolicy = true;
+        }
+        /**
+         * Changes loop sleeps (can be called from any thread, e.g. settings listener). 
+         * New values are used from next sleep; default {@code RetryPolicy} is replaced with one using new {@code exceptionLoopSleep_sec}.
+         * 
+         * @param normalLoopSleep_sec sleep between {@code DoWork()} calls, 0 - default (10 sec)
+         * @param exceptionLoopSleep_sec sleep after {@code DoWork()} exception, 0 - default (10 min)
+         */
+        public final void retuneLoopSleeps(int normalLoopSleep_sec, int exceptionLoopSleep_sec)
+        {
+            this.normalLoopSleep_sec = normalLoopSleep_sec <= 0 ? 10 : normalLoopSleep_sec;
+            this.exceptionLoopSleep_sec = exceptionLoopSleep_sec <= 0 ? 10 * 60 : exceptionLoopSleep_sec;
+            if (defaultRetryPolicy)
+                this.retryPolicy = new FixedRetryPolicy(this.exceptionLoopSleep_sec * 1000L);
+        }
+        public final int normalLoopSleep_sec() { return normalLoopSleep_sec; }
+        public final int exceptionLoopSleep_sec() { return exceptionLoopSleep_sec; }
+        private volatile AsyncLog msgLog;
+        private volatile AsyncLog excLog;
+        /**
+         * Turns on asynchronous writing of {@code workermsgLog} and {@code workerexcLog} (see {@code AsyncLog}). 
+         * Must be called before {@code start()}. 
+         * 
+         * @param capacity buffer capacity (records) of every log
+         * @param overflowPolicy what to do with new record when buffer is full
+         * @param sampleEvery for {@code AsyncLog.OverflowPolicy.SAMPLE}: every {@code sampleEvery}-th overflowing record is kept
+         */
+        protected final void setAsyncLogging(int capacity, AsyncLog.OverflowPolicy overflowPolicy, int sampleEvery)
+        {
+            enableAsyncLogging(capacity, overflowPolicy, sampleEvery);
+        }
+        void enableAsyncLogging(int capacity, AsyncLog.OverflowPolicy overflowPolicy, int sampleEvery)
+        {
+            if (currentThread != null)
+                throw new Error("MUSTNEVERTHROW: setAsyncLogging() must be called before start()!");
+            msgLog = new AsyncLog(workermsgLog, capacity, overflowPolicy, sampleEvery);
+            excLog = workerexcLog == workermsgLog ? msgLog : new AsyncLog(workerexcLog, capacity, overflowPolicy, sampleEvery);
+        }
+        /**
+         * {@code workermsgLog} front-end (asynchronous if {@code setAsyncLogging} was called), use it in {@code DoWork()}
+         */
+        public final AsyncLog msgLog()
+        {
+            return msgLog;
+        }
+        /**
+         * {@code workerexcLog} front-end (asynchronous if {@code setAsyncLogging} was called), use it in {@code DoWork()}
+         */
+        public final AsyncLog excLog()
+        {
+            return excLog;
         }
         private volatile Thread currentThread;
+        private volatile boolean virtualThreads;
+        /**
+         * Runs worker thread and tasks of {@code taskExecutor()} in virtual threads when JVM is 21+ 
+         * (on older JVMs platform threads are used). Must be called before {@code start()}.
+         */
+        protected final void setVirtualThreads(boolean virtualThreads)
+        {
+            if (currentThread != null)
+                throw new Error("MUSTNEVERTHROW: setVirtualThreads() must be called before start()!");
+            this.virtualThreads = virtualThreads;
+        }
+        /**
+         * @return true if worker runs in virtual thread
+         */
+        public final boolean isVirtualThread()
+        {
+            return virtualThreads && ServiceThreads.isVirtualThreadsSupported();
+        }
+        private ExecutorService taskExecutor;
+        volatile ExecutorService sharedTaskExecutor;
+        private final Object taskExecutorLOCK = new Object();
+        /**
+         * Executor for tasks fanned out by {@code DoWork()}: new virtual thread per task (see {@code setVirtualThreads}), 
+         * or cached pool of platform threads. Shut down when worker thread exits. 
+         * In {@code CommonsDaemonServiceHost} platform threads pool is shared by all services (and not shut down).
+         */
+        protected final ExecutorService taskExecutor()
+        {
+            ExecutorService shared = sharedTaskExecutor;
+            if (shared != null && !isVirtualThread())
+                return shared;
+            synchronized (taskExecutorLOCK)
+            {
+                if (taskExecutor == null)
+                    taskExecutor = ServiceThreads.newTaskExecutor("ServiceWorkerThread task thread" + threadNameSuffix, virtualThreads);
+                return taskExecutor;
+            }
+        }
+        private void shutdownTaskExecutor()
+        {
+            synchronized (taskExecutorLOCK)
+            {
+                if (taskExecutor != null)
+                    taskExecutor.shutdownNow();
+            }
+        }
+        String threadNameSuffix = "";
         public final Thread CurrentThread()
         {
             return currentThread;
@@ -418,30 +1439,267 @@ public abstract class CommonsDaemonService {
                 if (currentThread != null)
                     throw new Error("MUSTNEVERTHROW: ServiceWorkerThread.start() method called again!");
 
+                restoreCheckpoint();
                 JustBeforeStart();
 
                 if (hasStopSignal())
                 {
-                    workermsgLog.write("ServiceWorkerThread.start", "Service worker thread \"" + serviceName + "\" was not started.", true);
+                    msgLog.write("ServiceWorkerThread.start", "Service worker thread \"" + serviceName + "\" was not started.", true);
                 }
                 else
                 {
-                    currentThread = new Thread(this);
-                    currentThread.setName("ServiceWorkerThread thread");
+                    currentThread = ServiceThreads.newThread(this, "ServiceWorkerThread thread" + threadNameSuffix, virtualThreads);
                     currentThread.start();
-                    for (int n = 0; !isRunned; n++)
-                    {
-                        if (n >= 30 * 10)
+                    try 
+                    { 
+                        if (!runnedLatch.await(30, TimeUnit.SECONDS))
                             throw new Error("ServiceWorkerThread.run() didnt start in 30 sec!");
-                        try { Thread.sleep(100); } catch (InterruptedException iex) { throw new RuntimeException(iex); }
-                    }
+                    } 
+                    catch (InterruptedException iex) { throw new RuntimeException(iex); }
                 }
             }
         }
 
         protected abstract void JustBeforeStart() throws Exception;
+        private volatile CheckpointFile checkpointFile;
+        private volatile long checkpointInterval_ms;
+        private volatile int checkpointStateVersion;
+        private long lastCheckpoint_ns;
+        /**
+         * Turns on checkpointing of worker state (see {@code CheckpointFile}): {@code checkpointState()} is saved 
+         * by worker thread every {@code interval_ms} (after successful {@code DoWork()}) and before {@code onThreadExit()} 
+         * (not after fatal error); last saved state is passed to {@code restoreState()} just before {@code JustBeforeStart()}, 
+         * so restarted worker (in-process or in new JVM) resumes from last checkpoint. 
+         * Must be called before {@code start()}.
+         * 
+         * @param file checkpoint file (slot files {@code <file>.a} and {@code <file>.b} are used)
+         * @param interval_ms min interval between periodic checkpoints, 0 - checkpoint on exit only
+         * @param stateVersion version of state format, passed to {@code restoreState()} with saved state
+         */
+        protected final void setCheckpointing(Path file, long interval_ms, int stateVersion)
+        {
+            if (currentThread != null)
+                throw new Error("MUSTNEVERTHROW: setCheckpointing() must be called before start()!");
+            if (interval_ms < 0)
+                throw new Error("MUSTNEVERTHROW: interval_ms must not be negative!");
+            this.checkpointFile = file == null ? null : new CheckpointFile(file);
+            this.checkpointInterval_ms = interval_ms;
+            this.checkpointStateVersion = stateVersion;
+        }
+        /**
+         * Called in worker thread to take state snapshot for checkpoint.
+         * 
+         * @return serialized state, or null to skip this checkpoint
+         */
+        protected byte[] checkpointState() throws Exception { return null; }
+        /**
+         * Called just before {@code JustBeforeStart()} with last saved checkpoint (if any). 
+         * If it throws, worker starts without restored state.
+         * 
+         * @param stateVersion {@code stateVersion} the state was saved with
+         */
+        protected void restoreState(byte[] state, int stateVersion) throws Exception { }
+        private void restoreCheckpoint()
+        {
+            CheckpointFile cf = checkpointFile;
+            if (cf == null)
+                return;
+            long start_ns = System.nanoTime();
+            CheckpointFile.State st;
+            try
+            {
+                st = cf.read();
+            }
+            catch (Throwable th)
+            {
+                //without knowing last sequence number, new checkpoints could lose to stale one
+                checkpointFile = null;
+                excLog.write(th, Common.getCurrentSTE(), "Error reading checkpoint, worker starts without restored state and checkpointing is off", true);
+                return;
+            }
+            lastCheckpoint_ns = ServiceClock.current().nanoTime();
+            if (st == null)
+                return;
+            try
+            {
+                restoreState(st.data, st.stateVersion);
+                msgLog.write("ServiceWorkerThread.start", "Service worker thread \"" + serviceName + "\" state restored from checkpoint #" + st.seq + " (" + st.data.length + " bytes, state version " + st.stateVersion + ") in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start_ns) + " ms.");
+            }
+            catch (Throwable th)
+            {
+                excLog.write(th, Common.getCurrentSTE(), "Error restoreState(), worker starts without restored state", true);
+            }
+        }
+        private void checkpoint(boolean onExit)
+        {
+            CheckpointFile cf = checkpointFile;
+            if (cf == null)
+                return;
+            try
+            {
+                byte[] state = checkpointState();
+                lastCheckpoint_ns = ServiceClock.current().nanoTime();
+                if (state == null)
+                    return;
+                cf.write(state, checkpointStateVersion);
+                if (onExit)
+                    msgLog.write("ServiceWorkerThread.run", "Service worker thread \"" + serviceName + "\" checkpoint #" + cf.seq() + " saved (" + state.length + " bytes).");
+            }
+            catch (Throwable th)
+            {
+                excLog.write(th, Common.getCurrentSTE(), "Error checkpoint", onExit);
+            }
+        }
         protected abstract Worker_DoWork_resultFlags DoWork() throws Exception;
+        private volatile AdaptivePacer pacer;
+        /**
+         * Sets pacer that computes sleep between {@code DoWork()} calls from their results 
+         * (when {@code DoWork()} result has no explicit {@code nextDelay_ms}).
+         * Pacer instance must not be shared between workers.
+         * 
+         * @param pacer pacer, or null to use fixed {@code normalLoopSleep_sec}
+         */
+        protected final void setPacer(AdaptivePacer pacer)
+        {
+            this.pacer = pacer;
+        }
+        public final AdaptivePacer pacer()
+        {
+            return pacer;
+        }
+        private long nextLoopSleep_ms(Worker_DoWork_resultFlags resultFlags)
+        {
+            AdaptivePacer p = pacer;
+            long paced_ms = p != null ? p.nextDelay_ms(resultFlags) : -1;
+            if (resultFlags != null && resultFlags.nextDelay_ms >= 0)
+                return resultFlags.nextDelay_ms;
+            if (p != null)
+                return paced_ms;
+            if (resultFlags != null && resultFlags.backlogRemains)
+                return 0;
+            return resultFlags != null && resultFlags.doFastLoop ? fastLoopSleep_ms : normalLoopSleep_sec * 1000L;
+        }
+        /**
+         * Called after {@code DoWork()} exception. 
+         * {@code retryPolicy()} already contains state after this exception (consecutive failures, circuit-breaker state, sleep before next call).
+         */
         protected abstract void DoWorkOnException(Exception ex, StackTraceElement exSte);
+        private volatile RateLimiter rateLimiter;
+        private volatile ConcurrencyBudget concurrencyBudget;
+        private volatile int maxPermitsPerIteration;
+        private static final long throttlePoll_ms = 50;
+        private int iterationPermits = -1;
+        private int iterationConcurrency;
+        /**
+         * Throttles {@code DoWork()} calls: before every call worker waits for at least one permit 
+         * of {@code concurrencyBudget} (held during the call) and of {@code rateLimiter}, 
+         * and takes up to {@code maxPermitsPerIteration} of them (see {@code iterationPermits()}). 
+         * Rate permits not used by the call ({@code Worker_DoWork_resultFlags.itemsProcessed}) are returned. 
+         * Limiter and budget can be shared by workers; time spent waiting is in {@code metrics()}. 
+         * Can be called any time.
+         * 
+         * @param rateLimiter rate limit, or null
+         * @param concurrencyBudget concurrency limit, or null
+         * @param maxPermitsPerIteration max items (calls) one {@code DoWork()} call may use
+         */
+        protected final void setThrottle(RateLimiter rateLimiter, ConcurrencyBudget concurrencyBudget, int maxPermitsPerIteration)
+        {
+            if (maxPermitsPerIteration <= 0)
+                throw new Error("MUSTNEVERTHROW: maxPermitsPerIteration must be positive!");
+            this.maxPermitsPerIteration = maxPermitsPerIteration;
+            this.concurrencyBudget = concurrencyBudget;
+            this.rateLimiter = rateLimiter;
+        }
+        /**
+         * @return items (calls) current {@code DoWork()} call may use, -1 - not throttled
+         */
+        protected final int iterationPermits()
+        {
+            return iterationPermits;
+        }
+        /**
+         * @return false if stop signal received while waiting
+         */
+        private boolean acquireIterationPermits() throws InterruptedException
+        {
+            RateLimiter rl = rateLimiter;
+            ConcurrencyBudget cb = concurrencyBudget;
+            if (rl == null && cb == null)
+            {
+                iterationPermits = -1;
+                return true;
+            }
+            long start_ns = System.nanoTime();
+            int permits;
+            for (;;)
+            {
+                permits = maxPermitsPerIteration;
+                if (cb != null)
+                {
+                    while ((permits = cb.tryAcquire(maxPermitsPerIteration)) == 0)
+                    {
+                        cb.awaitAvailable(throttlePoll_ms);
+                        if (doStop)
+                            return false;
+                    }
+                    iterationConcurrency = permits;
+                }
+                if (rl == null)
+                    break;
+                long granted = rl.tryAcquire(permits);
+                if (granted > 0)
+                {
+                    permits = (int)granted;
+                    //rate granted less than concurrency budget did: surplus is given back to other workers now, not after DoWork()
+                    if (cb != null && permits < iterationConcurrency)
+                    {
+                        cb.release(iterationConcurrency - permits);
+                        iterationConcurrency = permits;
+                    }
+                    break;
+                }
+                //no rate tokens: concurrency permits are not held while throttled, other workers of the budget can use them
+                if (cb != null)
+                {
+                    cb.release(iterationConcurrency);
+                    iterationConcurrency = 0;
+                }
+                if (!sleepBetweenLoops(Math.max(1, TimeUnit.NANOSECONDS.toMillis(rl.waitTime_ns(1))), false, false))
+                    return false;
+            }
+            iterationPermits = permits;
+            long throttled_ns = System.nanoTime() - start_ns;
+            if (throttled_ns > TimeUnit.MICROSECONDS.toNanos(100))
+                metrics.onThrottle(throttled_ns);
+            return true;
+        }
+        private void releaseIterationPermits(Worker_DoWork_resultFlags resultFlags)
+        {
+            RateLimiter rl = rateLimiter;
+            if (rl != null && resultFlags != null && resultFlags.itemsProcessed >= 0 && resultFlags.itemsProcessed < iterationPermits)
+                rl.refund(iterationPermits - resultFlags.itemsProcessed);
+            iterationPermits = -1;
+            ConcurrencyBudget cb = concurrencyBudget;
+            if (cb != null && iterationConcurrency > 0)
+                cb.release(iterationConcurrency);
+            iterationConcurrency = 0;
+        }
+        private volatile RetryPolicy retryPolicy;
+        private volatile boolean defaultRetryPolicy;
+        /**
+         * Sets policy, that decides how long to sleep after {@code DoWork()} exception 
+         * (default is {@code FixedRetryPolicy} with {@code exceptionLoopSleep_sec}).
+         * Policy instance must not be shared between workers.
+         */
+        protected final void setRetryPolicy(RetryPolicy retryPolicy)
+        {
+            this.retryPolicy = Objects.requireNonNull(retryPolicy, "MUSTNEVERTHROW: retryPolicy is null!");
+            this.defaultRetryPolicy = false;
+        }
+        public final RetryPolicy retryPolicy()
+        {
+            return retryPolicy;
+        }
 
         private String errorMessage = null;
         public String errorMessage()
@@ -451,31 +1709,321 @@ public abstract class CommonsDaemonService {
         private volatile boolean doStop;
         private volatile boolean isRunned;
         private volatile boolean isStopped;
+        private final CountDownLatch runnedLatch = new CountDownLatch(1);
+        private final CountDownLatch stoppedLatch = new CountDownLatch(1);
+        volatile Runnable lifecycleListener;
+        private void fireLifecycleChanged()
+        {
+            Runnable l = lifecycleListener;
+            if (l != null)
+                l.run();
+        }
+        /**
+         * Blocks until worker thread exits (does not wait for {@code isStopped_addon}).
+         * 
+         * @return false if timeout elapsed
+         */
+        public boolean awaitThreadExit(long timeout, TimeUnit unit) throws InterruptedException
+        {
+            return stoppedLatch.await(timeout, unit);
+        }
+        /**
+         * aggregated stop state: worker thread is gone (or not started), stop conditions are satisfied and {@code isStopped_addon} returned true; 
+         * updated on events (thread start and exit, stop condition creation and satisfaction, addon registration), not on every {@code isStopped()} call
+         */
+        private volatile boolean stopped_cached = true;
+        /**
+         * worker thread is gone and stop conditions are satisfied, but {@code isStopped_addon} are not satisfied yet: they can only be polled
+         */
+        private volatile boolean addonPolling;
+        private final Object stopStateLOCK = new Object();
+        void updateStopState()
+        {
+            synchronized (stopStateLOCK)
+            {
+                boolean stopped = (isStopped || !isRunned) && pendingStopConditions.get() == 0;
+                boolean polling = false;
+                if (stopped && !isStopped_addon.isEmpty())
+                    for (Common.Func<Boolean> e : snapshot(isStopped_addon))
+                    {
+                        boolean satisfied;
+                        //called on worker thread exit too: failing addon is not satisfied, it is polled again
+                        try { satisfied = e.call(); } catch (RuntimeException ex) { satisfied = false; }
+                        if (!satisfied)
+                        {
+                            stopped = false;
+                            polling = true;
+                            break;
+                        }
+                    }
+                addonPolling = polling;
+                stopped_cached = stopped;
+            }
+        }
+        boolean isStopPollingNeeded()
+        {
+            return addonPolling;
+        }
         public boolean isStopped()
         {
-            if (!isStopped_addon.isEmpty())
-                for (Common.Func<Boolean> e : isStopped_addon)
-                    if (!e.call())
-                        return false;
-            return isStopped || !isRunned;
+            if (addonPolling)
+                updateStopState();
+            return stopped_cached;
+        }
+        /**
+         * last aggregated stop state, does not call {@code isStopped_addon} (for monitoring: management commands, MBean)
+         */
+        boolean lastStopState()
+        {
+            return stopped_cached;
+        }
+        /**
+         * conditions polled by {@code isStopped()} once worker thread is gone; prefer {@code newStopCondition()}, that is not polled. 
+         * After {@code start()} modify it only holding its lock ({@code synchronized (isStopped_addon)}); 
+         * addon added directly after worker thread exit is seen only with next stop event, use {@code worker_addIsStopped_addon()} instead.
+         */
+        public final ArrayList<Common.Func<Boolean>> isStopped_addon = new ArrayList<>();
+        /**
+         * copy for iteration: handlers can be added while list is iterated by other thread
+         */
+        static <T> ArrayList<T> snapshot(ArrayList<T> list)
+        {
+            synchronized (list)
+            {
+                return new ArrayList<>(list);
+            }
+        }
+        private final AtomicInteger pendingStopConditions = new AtomicInteger();
+        private final List<StopCondition> stopConditions = new CopyOnWriteArrayList<>();
+        /**
+         * Creates condition, that must be satisfied (see {@code StopCondition.satisfy()}) before worker is considered stopped.
+         */
+        public final StopCondition newStopCondition(String name)
+        {
+            pendingStopConditions.incrementAndGet();
+            updateStopState();
+            StopCondition c = new StopCondition(name, () -> 
+            {
+                pendingStopConditions.decrementAndGet();
+                updateStopState();
+                fireLifecycleChanged();
+            });
+            stopConditions.add(c);
+            return c;
+        }
+        /**
+         * @return stop conditions, that are not satisfied yet
+         */
+        public final String pendingStopConditions()
+        {
+            StringBuilder sb = new StringBuilder();
+            for (StopCondition c : stopConditions)
+                if (!c.isSatisfied())
+                    sb.append(sb.length() == 0 ? "" : ", ").append(c.name);
+            return sb.toString();
         }
-        public final  ArrayList<Common.Func<Boolean>> isStopped_addon = new ArrayList<>();
         private volatile boolean inwork;
         public boolean isInwork()
         {
             return inwork;
         }
+        private final ServiceWorkerMetrics metrics = new ServiceWorkerMetrics(this);
+        private volatile long iterationDeadline_ms;
+        private volatile long stallSampleInterval_ms;
+        private volatile StallDetector stallDetector;
+        /**
+         * Turns on watchdog of {@code DoWork()} duration: when call runs longer than {@code deadline_ms}, 
+         * stack of worker thread is sampled every {@code sampleInterval_ms}, and after the call 
+         * report with hot frames is written to {@code msgLog()} and kept in {@code metrics()}. 
+         * Must be called before {@code start()}.
+         * 
+         * @param deadline_ms max normal duration of {@code DoWork()}, 0 - watchdog is off
+         */
+        protected final void setIterationDeadline(long deadline_ms, long sampleInterval_ms)
+        {
+            if (currentThread != null)
+                throw new Error("MUSTNEVERTHROW: setIterationDeadline() must be called before start()!");
+            if (deadline_ms < 0 || (deadline_ms > 0 && sampleInterval_ms <= 0))
+                throw new Error("MUSTNEVERTHROW: wrong deadline_ms or sampleInterval_ms!");
+            this.iterationDeadline_ms = deadline_ms;
+            this.stallSampleInterval_ms = sampleInterval_ms;
+        }
+        private volatile boolean resourceAccounting;
+        private volatile long allocationBudget_bytes;
+        private volatile long cpuBudget_ms;
+        /**
+         * Turns on accounting of CPU time and allocated bytes of every {@code DoWork()} call (see {@code metrics()}); 
+         * call over budget is reported to {@code msgLog()}. Must be called before {@code start()}.
+         * 
+         * @param allocationBudget_bytes max normal allocation of one call, 0 - no limit
+         * @param cpuBudget_ms max normal CPU time of one call, 0 - no limit
+         */
+        protected final void setResourceAccounting(boolean enabled, long allocationBudget_bytes, long cpuBudget_ms)
+        {
+            if (currentThread != null)
+                throw new Error("MUSTNEVERTHROW: setResourceAccounting() must be called before start()!");
+            if (allocationBudget_bytes < 0 || cpuBudget_ms < 0)
+                throw new Error("MUSTNEVERTHROW: budget must not be negative!");
+            this.resourceAccounting = enabled;
+            this.allocationBudget_bytes = allocationBudget_bytes;
+            this.cpuBudget_ms = cpuBudget_ms;
+        }
+        private void recordResources(long cpuStart_ns, long allocatedStart_bytes)
+        {
+            long cpu_ns = cpuStart_ns < 0 ? -1 : ThreadResourceMeter.cpuTime_ns() - cpuStart_ns;
+            long allocated_bytes = allocatedStart_bytes < 0 ? -1 : ThreadResourceMeter.allocatedBytes() - allocatedStart_bytes;
+            metrics.onResources(cpu_ns, allocated_bytes);
+            boolean overAllocation = allocationBudget_bytes > 0 && allocated_bytes > allocationBudget_bytes;
+            boolean overCpu = cpuBudget_ms > 0 && cpu_ns > TimeUnit.MILLISECONDS.toNanos(cpuBudget_ms);
+            if (overAllocation || overCpu)
+                msgLog.write("ServiceWorkerThread.run", "Service worker thread \"" + serviceName + "\" DoWork() is over budget: allocated " + allocated_bytes + " bytes (budget " + allocationBudget_bytes + "), CPU " + TimeUnit.NANOSECONDS.toMillis(cpu_ns) + " ms (budget " + cpuBudget_ms + ").");
+        }
+        StallDetector stallDetector()
+        {
+            return stallDetector;
+        }
+        /**
+         * @return stack of worker thread (and stall report, if {@code DoWork()} is stalled now)
+         */
+        String threadStackTrace()
+        {
+            Thread t = currentThread;
+            if (t == null)
+                return "(not started)";
+            StringBuilder sb = new StringBuilder();
+            sb.append('"').append(t.getName()).append("\" ").append(t.getState());
+            for (StackTraceElement e : t.getStackTrace())
+                sb.append("\r\n    at ").append(e);
+            StallDetector sd = stallDetector;
+            String stall = sd != null && inwork ? sd.report() : null;
+            if (stall != null && stall.startsWith("DoWork() is running"))
+                sb.append("\r\n").append(stall);
+            return sb.toString();
+        }
+        public final ServiceWorkerMetrics metrics()
+        {
+            return metrics;
+        }
+        /**
+         * handlers run one after another on every stop-signal; prefer {@code shutdownHooks()}, that run in parallel with timeouts. 
+         * After {@code start()} modify it only holding its lock ({@code synchronized (onSignalStop)}).
+         */
         public final ArrayList<Common.Action> onSignalStop = new ArrayList<>();
+        private final ShutdownHooks shutdownHooks = new ShutdownHooks();
+        /**
+         * Hooks run on first stop-signal, after {@code onSignalStop} handlers (see {@code ShutdownHooks}). 
+         * Worker rebuilt by in-process restart has its own hooks.
+         */
+        public final ShutdownHooks shutdownHooks()
+        {
+            return shutdownHooks;
+        }
+        /**
+         * Runs {@code onSignalStop} handlers, sets stop flag (wakes worker), then runs {@code shutdownHooks()}. 
+         * Service stop calls it in separate thread, limited by service stopping timeout.
+         */
         public void signalStop()
         {
-            if (!onSignalStop.isEmpty())
-                try { onSignalStop.forEach((e) -> { e.call(); }); } catch (Exception ex) { workerexcLog.write(ex, Common.getCurrentSTE(), "Error onSignalStop()", true); }
+            for (Common.Action e : snapshot(onSignalStop))
+                try { e.call(); } catch (Exception ex) { excLog.write(ex, Common.getCurrentSTE(), "Error onSignalStop()", true); }
             doStop = true;
+            onStopFlagSet();
+            signalSleepCondition();
+            fireLifecycleChanged();
+            shutdownHooks.run(excLog);
         }
+        /**
+         * called by {@code signalStop()} right after stop flag is set, before shutdown hooks run
+         */
+        void onStopFlagSet() { }
         public boolean hasStopSignal()
         {
             return doStop;
         }
+        //j.u.c. lock instead of monitor: waiting virtual thread does not pin its carrier thread
+        private final ReentrantLock sleepLock = new ReentrantLock();
+        private final Condition sleepCondition = sleepLock.newCondition();
+        private final Runnable sleepConditionSignalAll = this::signalSleepCondition;
+        private void signalSleepCondition()
+        {
+            sleepLock.lock();
+            try
+            {
+                sleepCondition.signalAll();
+            }
+            finally
+            {
+                sleepLock.unlock();
+            }
+        }
+        private volatile boolean wakeUpSignaled;
+        /**
+         * Makes next {@code DoWork()} call run immediately: 
+         * if worker sleeps between {@code DoWork()} calls, it wakes up; 
+         * if {@code DoWork()} is running now, it will be called again right after it returns.
+         * Does not shorten sleep after {@code DoWork()} exception.
+         * Can be called from any thread.
+         */
+        public void wakeUp()
+        {
+            if (wakeUpSignaled)
+                return;
+            sleepLock.lock();
+            try
+            {
+                wakeUpSignaled = true;
+                sleepCondition.signalAll();
+            }
+            finally
+            {
+                sleepLock.unlock();
+            }
+        }
+        /**
+         * same as {@code wakeUp()}, for producers of work
+         */
+        public void signalWork()
+        {
+            wakeUp();
+        }
+        /**
+         * Parks worker thread until timeout, stop signal or (if {@code wakeable}) {@code wakeUp()} call.
+         * 
+         * @return false if stop signal received
+         */
+        private boolean sleepBetweenLoops(long sleep_ms, boolean wakeable, boolean ignoreInterrupts) throws InterruptedException
+        {
+            if (sleep_ms <= 0)
+                return !doStop;
+            ServiceClock clock = ServiceClock.current();
+            long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sleep_ms);
+            sleepLock.lock();
+            try
+            {
+                while (!doStop)
+                {
+                    if (wakeable && wakeUpSignaled)
+                        return true;
+                    long rest = deadline - clock.nanoTime();
+                    if (rest <= 0)
+                        return true;
+                    try 
+                    {
+                        clock.awaitNanos(sleepCondition, sleepConditionSignalAll, rest); 
+                    } 
+                    catch (InterruptedException iex) 
+                    { 
+                        if (!ignoreInterrupts) 
+                            throw iex; 
+                    }
+                }
+                return false;
+            }
+            finally
+            {
+                sleepLock.unlock();
+            }
+        }
         @Override
         public final void run() {
             if (currentThread == null)
@@ -483,41 +2031,94 @@ public abstract class CommonsDaemonService {
             try
             {
                 isRunned = true;
+                updateStopState();
+                runnedLatch.countDown();
+                fireLifecycleChanged();
 
-                workermsgLog.write("ServiceWorkerThread.run", "Service worker thread \"" + serviceName + "\" started");
+                msgLog.write("ServiceWorkerThread.run", "Service worker thread \"" + serviceName + "\" started");
+                boolean resources = resourceAccounting;
+                StallDetector stall = null;
+                if (iterationDeadline_ms > 0)
+                {
+                    stallDetector = stall = new StallDetector(Thread.currentThread(), iterationDeadline_ms, stallSampleInterval_ms);
+                    stall.start();
+                }
                 while(!hasStopSignal())
                 {
+                    long iterationStart_ns = 0;
+                    long cpuStart_ns = -1;
+                    long allocatedStart_bytes = -1;
+                    boolean iterationRecorded = false;
+                    RetryPolicy retry = retryPolicy;
+                    Worker_DoWork_resultFlags resultFlags = null;
                     try
                     {
+                        if (!acquireIterationPermits())
+                            return;
+                        retry.beforeAttempt();
                         inwork = true;
+                        wakeUpSignaled = false;
+                        if (resources)
+                        {
+                            cpuStart_ns = ThreadResourceMeter.cpuTime_ns();
+                            allocatedStart_bytes = ThreadResourceMeter.allocatedBytes();
+                        }
+                        iterationStart_ns = System.nanoTime();
+                        if (stall != null)
+                            stall.iterationStarted(iterationStart_ns);
 
-                        Worker_DoWork_resultFlags resultFlags = DoWork();
+                        resultFlags = DoWork();
+                        releaseIterationPermits(resultFlags);
 
+                        long iterationEnd_ns = System.nanoTime();
                         inwork = false;
-                        for (int n = 0; n <= ((resultFlags != null && resultFlags.doFastLoop ? 2 : normalLoopSleep_sec * 10)); n++)
-                        {
-                            Thread.sleep(100);
-                            if (hasStopSignal())
-                                return;
-                        }
+                        metrics.onIteration(iterationEnd_ns - iterationStart_ns, false);
+                        if (resources)
+                            recordResources(cpuStart_ns, allocatedStart_bytes);
+                        if (stall != null)
+                            writeStallReport(stall.iterationEnded(iterationEnd_ns));
+                        iterationRecorded = true;
+                        retry.onSuccess();
+                        if (checkpointFile != null && checkpointInterval_ms > 0 && ServiceClock.current().nanoTime() - lastCheckpoint_ns >= TimeUnit.MILLISECONDS.toNanos(checkpointInterval_ms))
+                            checkpoint(false);
+                        boolean continueLoop = sleepBetweenLoops(nextLoopSleep_ms(resultFlags), true, false);
+                        metrics.onSleep(System.nanoTime() - iterationEnd_ns);
+                        if (!continueLoop)
+                            return;
                     } 
                     catch (Exception ex) 
                     {
+                        long iterationEnd_ns = System.nanoTime();
+                        //exception of throttle or retry policy: DoWork() was not called, nothing to account
+                        boolean doWorkCalled = iterationStart_ns != 0;
+                        if (doWorkCalled && !iterationRecorded)
+                        {
+                            metrics.onIteration(iterationEnd_ns - iterationStart_ns, !(ex instanceof StopException));
+                            if (resources)
+                                recordResources(cpuStart_ns, allocatedStart_bytes);
+                            if (stall != null)
+                                writeStallReport(stall.iterationEnded(iterationEnd_ns));
+                        }
                         if (ex instanceof StopException)
                             return;
-                        workerexcLog.write(ex, Common.getCurrentSTE(), "Error DoWork()");
-                        try { DoWorkOnException(ex, Common.getCurrentSTE()); } catch (Exception exex) { workerexcLog.write(exex, Common.getCurrentSTE(), "Error DoWorkOnException(e)"); }
-                        inwork = false;
-                        for (int n = 0; n <= (exceptionLoopSleep_sec * 10); n++)
+                        long retryDelay_ms = iterationRecorded || !doWorkCalled ? exceptionLoopSleep_sec * 1000L : retry.onFailure(ex);
+                        if (doWorkCalled)
                         {
-                            try { Thread.sleep(100); } catch (InterruptedException iex) {}
-                            if (hasStopSignal())
-                                return;
+                            excLog.write(ex, Common.getCurrentSTE(), "Error DoWork()");
+                            try { DoWorkOnException(ex, Common.getCurrentSTE()); } catch (Exception exex) { excLog.write(exex, Common.getCurrentSTE(), "Error DoWorkOnException(e)"); }
                         }
+                        else
+                            excLog.write(ex, Common.getCurrentSTE(), "Error before DoWork() (throttle or retry policy)");
+                        inwork = false;
+                        boolean continueLoop = sleepBetweenLoops(retryDelay_ms, false, true);
+                        metrics.onSleep(System.nanoTime() - iterationEnd_ns);
+                        if (!continueLoop)
+                            return;
                     } 
                     finally 
                     {
                         inwork = false;
+                        releaseIterationPermits(null);
                     }   
                 }
             } 
@@ -527,27 +2128,48 @@ public abstract class CommonsDaemonService {
                     errorMessage = th.getMessage();
                 else
                     errorMessage = th.toString().trim() + "\r\n\r\n" + Common.getGoodStackTrace(th, 0);
-                workerexcLog.write(th, Common.getCurrentSTE(), new String[][]{new String[]{"fatalError","true"}});
+                excLog.write(th, Common.getCurrentSTE(), new String[][]{new String[]{"fatalError","true"}});
             } 
             finally 
             {
-                try { onThreadExit(); } catch(Throwable th) { workerexcLog.write(th, Common.getCurrentSTE(), "Ошибка onThreadExit()", true); }
+                StallDetector stall = stallDetector;
+                if (stall != null)
+                    stall.stop();
+                try { beforeThreadExit(); } catch(Throwable th) { excLog.write(th, Common.getCurrentSTE(), "Error beforeThreadExit()", true); }
+                if (errorMessage == null)
+                    checkpoint(true);
+                try { onThreadExit(); } catch(Throwable th) { excLog.write(th, Common.getCurrentSTE(), "Ошибка onThreadExit()", true); }
+                try { shutdownTaskExecutor(); } catch(Throwable th) { excLog.write(th, Common.getCurrentSTE(), "Error shutdownTaskExecutor()", true); }
                 finally
                 {
                     try
                     {
-                        workermsgLog.write("ServiceWorkerThread.run", "Рабочий поток сервиса \"" + serviceName + "\" остановлен" + (errorMessage != null ? " из-за критической ошибки!" : "."), true);
+                        msgLog.write("ServiceWorkerThread.run", "Рабочий поток сервиса \"" + serviceName + "\" остановлен" + (errorMessage != null ? " из-за критической ошибки!" : "."), true);
+                        excLog.close(asyncLogCloseTimeOut_ms);
+                        msgLog.close(asyncLogCloseTimeOut_ms);
                     }
                     finally
                     {
                         isStopped = true;
+                        updateStopState();
+                        stoppedLatch.countDown();
+                        fireLifecycleChanged();
                     }
                 }
             }            
         }
+        private void writeStallReport(String report)
+        {
+            if (report != null)
+                msgLog.write("ServiceWorkerThread.run", "Service worker thread \"" + serviceName + "\" stalled: " + report);
+        }
         public class StopException extends Exception { };
 
         protected abstract void onThreadExit() throws Exception;
+        /**
+         * called in worker thread just before {@code onThreadExit()}, for worker variants of this library
+         */
+        void beforeThreadExit() throws Exception { }
 
 
 
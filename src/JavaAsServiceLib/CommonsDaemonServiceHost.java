@@ -0,0 +1,396 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import CommonLib.ConsoleInputInterpreter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * 
+ * 
+ * Runs several {@code CommonsDaemonService} descendants in one JVM (to be started with procrun or jsvc instead of single service class).
+ * 
+ * Every service has own instance lifecycle, logs and workers; services share one scheduler ({@code CommonsDaemonService.scheduler()}) 
+ * and one task thread pool ({@code ServiceWorkerThread.taskExecutor()}). 
+ * Service, that would exit JVM with restart signal, is stopped and started again (new instance) 
+ * by service restart policy, other services keep running. JVM exits with restart signal only when all services are failed.
+ * 
+ * Console commands: {@code services}, {@code exit}, and management commands of every service with prefix {@code <service>.} 
+ * ({@code <service>} is simple class name; {@code <service>.exit} restarts the service); commands set by {@code setConsoleCommands} are registered as is.
+ * 
+ * on windows (procrun) use {@code OnStart} and {@code OnStop} methods with service class names as arguments
+ * 
+ * on linux (jsvc) use {@code init} (service class names as arguments), {@code start} and {@code stop} methods 
+ * 
+ */
+public final class CommonsDaemonServiceHost {
+    private final class Slot
+    {
+        final Class<? extends CommonsDaemonService> serviceClass;
+        final String name;
+        final WorkerRestartPolicy restartPolicy;
+        volatile CommonsDaemonService service;
+        volatile Thread mainThread;
+        volatile String state = "not started";
+        Slot(Class<? extends CommonsDaemonService> serviceClass, String name)
+        {
+            this.serviceClass = serviceClass;
+            this.name = name;
+            this.restartPolicy = new WorkerRestartPolicy(serviceMaxRestarts, serviceRestartBudgetWindow_ms, serviceRestartInitialBackoff_ms, serviceRestartMaxBackoff_ms);
+        }
+    }
+    private final ArrayList<Slot> slots = new ArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService taskExecutor;
+    private volatile boolean stopping;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private int serviceMaxRestarts = 5;
+    private long serviceRestartBudgetWindow_ms = 10 * 60 * 1000;
+    private long serviceRestartInitialBackoff_ms = 1000;
+    private long serviceRestartMaxBackoff_ms = 60 * 1000;
+    private final long serviceStopTimeOut_sec = 60;
+    
+    /**
+     * for linux-service (jsvc): services are set by {@code init}
+     */
+    public CommonsDaemonServiceHost()
+    {
+        CommonsDaemonService.enterHostMode();
+        scheduler = Executors.newScheduledThreadPool(1, (r) -> 
+        {
+            Thread t = new Thread(r, "CommonsDaemonServiceHost scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        taskExecutor = ServiceThreads.newTaskExecutor("CommonsDaemonServiceHost task thread", false);
+    }
+    @SafeVarargs
+    public CommonsDaemonServiceHost(Class<? extends CommonsDaemonService>... serviceClasses)
+    {
+        this();
+        for (Class<? extends CommonsDaemonService> c : serviceClasses)
+            addService(c);
+    }
+    /**
+     * Adds service (before {@code start()}).
+     */
+    public synchronized void addService(Class<? extends CommonsDaemonService> serviceClass)
+    {
+        String name = serviceClass.getSimpleName();
+        int same = 0;
+        for (Slot s : slots)
+            if (s.serviceClass.getSimpleName().equals(name))
+                same++;
+        slots.add(new Slot(serviceClass, same == 0 ? name : name + "#" + same));
+    }
+    /**
+     * Sets restart policy of every service (before {@code addService()}), see {@code WorkerRestartPolicy}. 
+     * Default: 5 restarts in 10 min, backoff from 1 sec to 1 min.
+     */
+    public synchronized void setServiceRestart(int maxRestarts, long budgetWindow_ms, long initialBackoff_ms, long maxBackoff_ms)
+    {
+        if (!slots.isEmpty())
+            throw new Error("MUSTNEVERTHROW: setServiceRestart() must be called before addService()!");
+        new WorkerRestartPolicy(maxRestarts, budgetWindow_ms, initialBackoff_ms, maxBackoff_ms); //validation
+        this.serviceMaxRestarts = maxRestarts;
+        this.serviceRestartBudgetWindow_ms = budgetWindow_ms;
+        this.serviceRestartInitialBackoff_ms = initialBackoff_ms;
+        this.serviceRestartMaxBackoff_ms = maxBackoff_ms;
+    }
+    
+    ScheduledExecutorService scheduler()
+    {
+        return scheduler;
+    }
+    ExecutorService taskExecutor()
+    {
+        return taskExecutor;
+    }
+    
+    
+    private static volatile CommonsDaemonServiceHost singleton;
+    /**
+     * for windows-service
+     * @param args service class names
+     */
+    public static void OnStart(String [] args) throws InterruptedException
+    {
+        CommonsDaemonServiceHost h = new CommonsDaemonServiceHost();
+        h.init(args);
+        singleton = h;
+        h.start();
+        h.stopped.await();
+    }
+    /**
+     * for windows-service
+     * @param args
+     */
+    public static void OnStop(String [] args)
+    {
+        singleton.stop();
+    }
+    /**
+     * for linux-service
+     * @param arguments service class names
+     */
+    @SuppressWarnings("unchecked")
+    public void init(String[] arguments)
+    {
+        if (arguments == null || arguments.length == 0)
+            throw new Error("MUSTNEVERTHROW: service class names expected as arguments!");
+        for (String a : arguments)
+        {
+            Class<?> c;
+            try
+            {
+                c = Class.forName(a);
+            }
+            catch (ClassNotFoundException ex)
+            {
+                throw new Error("MUSTNEVERTHROW: service class " + a + " not found!", ex);
+            }
+            if (!CommonsDaemonService.class.isAssignableFrom(c))
+                throw new Error("MUSTNEVERTHROW: " + a + " is not descendant of CommonsDaemonService!");
+            addService((Class<? extends CommonsDaemonService>)c);
+        }
+    }
+    /**
+     * for linux-service
+     */
+    public void start()
+    {
+        List<Slot> all;
+        synchronized (this)
+        {
+            if (slots.isEmpty())
+                throw new Error("MUSTNEVERTHROW: no services to host!");
+            all = new ArrayList<>(slots);
+        }
+        System.out.println(Common.NowToString() + "    " + "Service host started: " + all.size() + " services");
+        for (Slot s : all)
+            startService(s);
+        startConsole(all);
+    }
+    /**
+     * for linux-service
+     */
+    public void stop()
+    {
+        stopping = true;
+        List<Slot> all;
+        synchronized (this)
+        {
+            all = new ArrayList<>(slots);
+        }
+        ArrayList<Future<?>> stops = new ArrayList<>();
+        for (Slot s : all)
+            stops.add(taskExecutor.submit(() -> stopService(s, "stopped")));
+        for (Future<?> f : stops)
+            try { f.get(serviceStopTimeOut_sec, TimeUnit.SECONDS); } catch (Exception ex) { System.err.println(Common.NowToString() + "    " + "Service host stopping error: " + ex.toString()); }
+        scheduler.shutdownNow();
+        taskExecutor.shutdownNow();
+        System.out.println(Common.NowToString() + "    " + "Service host stopping by OS: services stopped.");
+        stopped.countDown();
+    }
+    /**
+     * for linux-service
+     * (not in use)
+     */
+    public void destroy() {
+        //
+    }
+    
+    private void startService(Slot s)
+    {
+        if (stopping)
+            return;
+        CommonsDaemonService svc = null;
+        try
+        {
+            svc = s.serviceClass.newInstance();
+            svc.host = this;
+            svc.hostedName = s.name;
+            s.service = svc;
+            s.state = "starting";
+            svc.serviceStart_internal();
+        }
+        catch (Throwable th)
+        {
+            System.err.println(Common.NowToString() + "    " + "Service " + s.name + " start error: " + th.toString() + "\r\n\r\n" + Common.getGoodStackTrace(th, 0));
+            if (svc != null && svc.svcMsgLog() == null)
+                s.service = null; //service logs are not created, nothing to stop
+            if (stopService(s, "restarting"))
+                scheduleRestart(s);
+            return;
+        }
+        CommonsDaemonService started = svc;
+        Thread t = new Thread(() -> 
+        {
+            try
+            {
+                started.startServiceWorker_and_runMainServiceCycle();
+            }
+            catch (CommonsDaemonService.ServiceExitError e) { }
+        });
+        t.setName("CommonsDaemonService main thread (" + s.name + ")");
+        s.mainThread = t;
+        s.state = "running";
+        t.start();
+    }
+    /**
+     * service would exit JVM with restart signal: stop it and restart by its policy (called from service thread)
+     */
+    void onServiceExit(CommonsDaemonService svc)
+    {
+        Slot slot = null;
+        synchronized (this)
+        {
+            for (Slot s : slots)
+                if (s.service == svc)
+                    slot = s;
+        }
+        if (slot == null || stopping)
+            return;
+        Slot s = slot;
+        s.state = "restarting";
+        taskExecutor.submit(() -> 
+        {
+            if (stopService(s, "restarting"))
+                scheduleRestart(s);
+        });
+    }
+    /**
+     * @return false if service did not stop in time: its threads are left running and slot is failed 
+     * (service must not be started again in this JVM), other services keep running
+     */
+    private boolean stopService(Slot s, String newState)
+    {
+        synchronized (s)
+        {
+            CommonsDaemonService svc = s.service;
+            if (svc == null)
+                return true;
+            s.service = null;
+            try
+            {
+                svc.serviceStop_internal();
+            }
+            catch (Throwable th)
+            {
+                System.err.println(Common.NowToString() + "    " + "Service " + s.name + " stop error: " + th.toString());
+            }
+            Thread t = s.mainThread;
+            if (t != null)
+                try { t.join(TimeUnit.SECONDS.toMillis(serviceStopTimeOut_sec)); } catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+            if ((t != null && t.isAlive()) || !svc.isServiceStopped())
+            {
+                s.state = "failed (did not stop)";
+                System.err.println(Common.NowToString() + "    " + "Service " + s.name + " did not stop in " + serviceStopTimeOut_sec + " sec, service is failed.");
+                if (!stopping)
+                    exitIfAllFailed();
+                return false;
+            }
+            s.mainThread = null;
+            s.state = newState;
+            return true;
+        }
+    }
+    private void exitWithRestartSignal(String reason)
+    {
+        System.err.println(Common.NowToString() + "    " + "Service host exit with restart signal because of: " + reason);
+        AsyncLog.flushAll(5000);
+        System.exit(123);
+    }
+    private void exitIfAllFailed()
+    {
+        synchronized (this)
+        {
+            for (Slot o : slots)
+                if (!o.state.startsWith("failed"))
+                    return;
+        }
+        exitWithRestartSignal("all services are failed.");
+    }
+    private void scheduleRestart(Slot s)
+    {
+        if (stopping)
+            return;
+        long backoff_ms = s.restartPolicy.nextRestartBackoff_ms();
+        if (backoff_ms < 0)
+        {
+            s.state = "failed";
+            System.err.println(Common.NowToString() + "    " + "Service " + s.name + " restart budget exhausted, service is failed.");
+            exitIfAllFailed();
+            return;
+        }
+        s.state = "restarting in " + backoff_ms + " ms";
+        System.err.println(Common.NowToString() + "    " + "Service " + s.name + " will be restarted in " + backoff_ms + " ms.");
+        scheduler.schedule(() -> { taskExecutor.submit(() -> startService(s)); }, backoff_ms, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * @return state of every service
+     */
+    public synchronized String servicesToString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Slot s : slots)
+            sb.append(sb.length() == 0 ? "" : "\r\n").append(s.name).append(" (").append(s.serviceClass.getName()).append("): ").append(s.state)
+                .append(", restarts=").append(s.restartPolicy.totalRestarts());
+        return sb.toString();
+    }
+    
+    private void startConsole(List<Slot> all)
+    {
+        try
+        {
+            ArrayList<ConsoleInputInterpreter.CommandHandler> commands = new ArrayList<>();
+            commands.add(new ConsoleInputInterpreter.CommandHandler("exit", "Correct exit of all services", false, (a)->
+            {
+                Common.setTimeout(()->
+                {
+                    try
+                    {
+                        stop();
+                    }
+                    finally
+                    {
+                        System.exit(123);
+                    }
+                }, 0, true);
+            }));
+            commands.add(new ConsoleInputInterpreter.CommandHandler("services", "Show hosted services", false, (a)->
+            {
+                System.out.println(servicesToString());
+            }));
+            HashSet<Class<?>> customAdded = new HashSet<>();
+            for (Slot s : all)
+            {
+                CommonsDaemonService svc = s.service;
+                if (svc != null)
+                    for (String name : svc.managementChannel().commandNames())
+                        if (!name.equals("help"))
+                            commands.add(new ConsoleInputInterpreter.CommandHandler(s.name + "." + name, svc.managementChannel().description(name) + " (" + s.name + ")", false, (a)->
+                            {
+                                CommonsDaemonService current = s.service;
+                                System.out.println(current == null ? s.state : current.managementChannel().execute(name, ""));
+                            }));
+                if (svc != null && svc.consoleCommands() != null && customAdded.add(s.serviceClass))
+                    commands.addAll(Arrays.asList(svc.consoleCommands()));
+            }
+            ConsoleInputInterpreter.start(commands.toArray(new ConsoleInputInterpreter.CommandHandler[0]));
+        }
+        catch (Throwable th) {
+            System.err.println(Common.NowToString() + "    " + "error starting ConsoleInputInterpreter (ConsoleInputInterpreter.start): " + th.toString());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * 
+ * 
+ * Limit of concurrent {@code DoWork()} calls (or items in process) of {@code ServiceWorkerThread} (see {@code ServiceWorkerThread.setThrottle}), 
+ * e.g. DB connections. 
+ * 
+ * Like semaphore, but permits can be taken partially ({@code tryAcquire}) and limit can be changed at runtime. 
+ * One instance can be shared by workers (also of different services, see {@code shared()}).
+ * 
+ */
+public final class ConcurrencyBudget {
+    private static final ConcurrentHashMap<String, ConcurrencyBudget> registry = new ConcurrentHashMap<>();
+    /**
+     * @return process-wide budget with given name (created with given limit on first call)
+     */
+    public static ConcurrencyBudget shared(String name, int limit)
+    {
+        return registry.computeIfAbsent(name, (k) -> new ConcurrencyBudget(limit));
+    }
+    
+    private int limit;
+    private int inUse;
+    
+    public ConcurrencyBudget(int limit)
+    {
+        setLimit(limit);
+    }
+    
+    /**
+     * Changes limit (can be called from any thread). When limit is lowered, permits in use are not revoked.
+     */
+    public synchronized void setLimit(int limit)
+    {
+        if (limit <= 0)
+            throw new Error("MUSTNEVERTHROW: limit must be positive!");
+        this.limit = limit;
+        notifyAll();
+    }
+    public synchronized int limit() { return limit; }
+    public synchronized int inUse() { return inUse; }
+    
+    /**
+     * Takes available permits, up to {@code max}.
+     * 
+     * @return permits taken (0 if budget is exhausted)
+     */
+    public synchronized int tryAcquire(int max)
+    {
+        int granted = Math.max(0, Math.min(max, limit - inUse));
+        inUse += granted;
+        return granted;
+    }
+    /**
+     * Waits until some permit is free.
+     * 
+     * @return false if timeout elapsed
+     */
+    public synchronized boolean awaitAvailable(long timeout_ms) throws InterruptedException
+    {
+        ServiceClock clock = ServiceClock.current();
+        long deadline = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+        while (inUse >= limit)
+        {
+            long rest = deadline - clock.nanoTime();
+            if (rest <= 0)
+                return false;
+            clock.timedWait(this, rest);
+        }
+        return true;
+    }
+    public synchronized void release(int permits)
+    {
+        if (permits <= 0)
+            return;
+        inUse = Math.max(0, inUse - permits);
+        notifyAll();
+    }
+}
@@ -0,0 +1,40 @@
+package JavaAsServiceLib;
+
+/**
+ *
+ * 
+ * 
+ * {@code RetryPolicy} with fixed sleep after every {@code DoWork()} exception and without circuit-breaker 
+ * (default policy of {@code ServiceWorkerThread}, sleep is {@code exceptionLoopSleep_sec}).
+ * 
+ */
+public final class FixedRetryPolicy implements RetryPolicy {
+    public final long delay_ms;
+    private volatile int consecutiveFailures;
+    
+    public FixedRetryPolicy(long delay_ms)
+    {
+        if (delay_ms < 0)
+            throw new Error("MUSTNEVERTHROW: delay_ms must not be negative!");
+        this.delay_ms = delay_ms;
+    }
+    
+    @Override
+    public void onSuccess() 
+    { 
+        if (consecutiveFailures != 0)
+            consecutiveFailures = 0;
+    }
+    @Override
+    public long onFailure(Exception ex) 
+    { 
+        consecutiveFailures++;
+        return delay_ms; 
+    }
+    @Override
+    public CircuitState circuitState() { return CircuitState.CLOSED; }
+    @Override
+    public int consecutiveFailures() { return consecutiveFailures; }
+    @Override
+    public long lastDelay_ms() { return delay_ms; }
+}
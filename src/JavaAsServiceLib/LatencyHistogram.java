@@ -0,0 +1,84 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * 
+ * 
+ * Fixed-size log-linear histogram of non-negative values (e.g. nanoseconds). 
+ * 
+ * Values are counted in buckets: 8 buckets per power of 2, so percentile error is below 12.5%. 
+ * {@code record()} does not allocate and can be called from any thread; readers see live values.
+ * 
+ */
+public final class LatencyHistogram {
+    private static final int subBucketBits = 3;
+    private static final int subBucketCount = 1 << subBucketBits;
+    private static final int linearLimit = subBucketCount * 2;
+    private static final int bucketCount = linearLimit + (63 - (subBucketBits + 1)) * subBucketCount;
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    
+    private static int bucketOf(long v)
+    {
+        if (v < linearLimit)
+            return (int)v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int)(v >>> (exp - subBucketBits)) & (subBucketCount - 1);
+        return linearLimit + (exp - (subBucketBits + 1)) * subBucketCount + sub;
+    }
+    private static long bucketUpperBound(int bucket)
+    {
+        if (bucket < linearLimit)
+            return bucket;
+        int exp = (bucket - linearLimit) / subBucketCount + (subBucketBits + 1);
+        int sub = (bucket - linearLimit) % subBucketCount;
+        long lower = (1L << exp) + ((long)sub << (exp - subBucketBits));
+        return lower + (1L << (exp - subBucketBits)) - 1;
+    }
+    
+    public void record(long v)
+    {
+        if (v < 0)
+            v = 0;
+        buckets.getAndIncrement(bucketOf(v));
+        count.getAndIncrement();
+        total.getAndAdd(v);
+        long m;
+        while ((m = max.get()) < v && !max.compareAndSet(m, v)) { }
+    }
+    public long count() { return count.get(); }
+    public long total() { return total.get(); }
+    public long max() { return max.get(); }
+    public long mean() 
+    { 
+        long c = count.get(); 
+        return c == 0 ? 0 : total.get() / c; 
+    }
+    /**
+     * @param p percentile, 0..100
+     * @return upper bound of bucket containing percentile {@code p} (not more than {@code max()}), 0 if histogram is empty
+     */
+    public long percentile(double p)
+    {
+        long c = count.get();
+        if (c == 0)
+            return 0;
+        long rank = (long)Math.ceil(c * Math.min(Math.max(p, 0), 100) / 100);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int n = 0; n < bucketCount; n++)
+        {
+            seen += buckets.get(n);
+            if (seen >= rank)
+                return Math.min(bucketUpperBound(n), max.get());
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,463 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ *
+ * 
+ * 
+ * Service management commands (see {@code CommonsDaemonService.addManagementCommand}), 
+ * served to console and, when started, to local TCP clients (loopback only). 
+ * 
+ * Protocol: client sends command line ({@code <command> [args]\n}), 
+ * server answers with text lines ending with line {@code .} (lines of answer starting with {@code .} are prefixed with one more {@code .}). 
+ * Answer to unknown or failed command starts with {@code ERROR}. 
+ * First command of client must be {@code auth <token>}: token is random secret generated on start and written to token file, 
+ * readable only by service account (other local users can connect to loopback port, but can not run commands). 
+ * One selector thread serves all clients; fast commands (e.g. {@code status}) run in it, 
+ * other commands run in command thread pool, so slow command does not delay other clients.
+ * 
+ */
+public final class ManagementChannel {
+    @FunctionalInterface
+    public interface Command
+    {
+        String execute(String args) throws Exception;
+    }
+    private static final class CommandInfo
+    {
+        final String description;
+        final boolean fast;
+        final Command command;
+        CommandInfo(String description, boolean fast, Command command)
+        {
+            this.description = description;
+            this.fast = fast;
+            this.command = command;
+        }
+    }
+    private static final int maxLineLength = 4096;
+    
+    private volatile LinkedHashMap<String, CommandInfo> commands = new LinkedHashMap<>();
+    private AsyncLog errLog;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private ExecutorService commandExecutor;
+    private ServerSocketChannel server;
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean closed;
+    private Path tokenFile;
+    private byte[] token;
+    
+    ManagementChannel() { }
+    
+    /**
+     * Adds (or replaces) command.
+     * 
+     * @param fast command is short and non-blocking, runs in selector thread
+     */
+    public synchronized ManagementChannel addCommand(String name, String description, boolean fast, Command command)
+    {
+        Objects.requireNonNull(name, "MUSTNEVERTHROW: name is null!");
+        Objects.requireNonNull(command, "MUSTNEVERTHROW: command is null!");
+        if (name.isEmpty() || name.indexOf(' ') >= 0)
+            throw new Error("MUSTNEVERTHROW: wrong command name \"" + name + "\"!");
+        LinkedHashMap<String, CommandInfo> c = new LinkedHashMap<>(commands);
+        c.put(name, new CommandInfo(description, fast, command));
+        commands = c;
+        return this;
+    }
+    public List<String> commandNames()
+    {
+        return new ArrayList<>(commands.keySet());
+    }
+    public String description(String name)
+    {
+        CommandInfo c = commands.get(name);
+        return c == null ? null : c.description;
+    }
+    /**
+     * Executes command in current thread.
+     * 
+     * @return command answer, or ERROR answer
+     */
+    public String execute(String name, String args)
+    {
+        CommandInfo c = commands.get(name);
+        if (c == null)
+            return "ERROR unknown command \"" + name + "\"";
+        return execute(c, args);
+    }
+    private String execute(CommandInfo c, String args)
+    {
+        try
+        {
+            String r = c.command.execute(args);
+            return r == null ? "" : r;
+        }
+        catch (Throwable th)
+        {
+            return "ERROR " + th.toString();
+        }
+    }
+    /**
+     * @return help: command names with descriptions
+     */
+    public String help()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, CommandInfo> e : commands.entrySet())
+            sb.append(sb.length() == 0 ? "" : "\r\n").append(e.getKey()).append(" - ").append(e.getValue().description);
+        return sb.toString();
+    }
+    
+    /**
+     * Starts serving clients on loopback interface.
+     * 
+     * @param port TCP port, 0 - any free port (see {@code port()})
+     * @param errLog log for selector thread errors
+     * @param tokenFile file to write client token to (replaced on every start, deleted on close)
+     */
+    synchronized void start(int port, AsyncLog errLog, Path tokenFile) throws IOException
+    {
+        if (server != null)
+            throw new Error("MUSTNEVERTHROW: ManagementChannel already started!");
+        this.errLog = errLog;
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : random)
+            hex.append(String.format("%02x", b));
+        writeTokenFile(tokenFile, hex.toString());
+        this.tokenFile = tokenFile;
+        this.token = hex.toString().getBytes(StandardCharsets.US_ASCII);
+        selector = Selector.open();
+        try
+        {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            if (server != null)
+                server.close();
+            selector.close();
+            Files.deleteIfExists(tokenFile);
+            throw ex;
+        }
+        commandExecutor = ServiceThreads.newTaskExecutor("ManagementChannel command thread", false);
+        thread = new Thread(this::run, "ManagementChannel selector thread");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    /**
+     * @return listening port, or -1 if not started
+     */
+    public synchronized int port()
+    {
+        return server == null || closed ? -1 : server.socket().getLocalPort();
+    }
+    /**
+     * @return file with client token, or null if not started
+     */
+    public synchronized Path tokenFile()
+    {
+        return tokenFile;
+    }
+    synchronized void close()
+    {
+        closed = true;
+        if (selector != null)
+        {
+            //selector thread closes client connections on exit
+            selector.wakeup();
+            try { thread.join(1000); } catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+            try { selector.close(); } catch (IOException ex) { }
+            try { server.close(); } catch (IOException ex) { }
+            commandExecutor.shutdownNow();
+            try { Files.deleteIfExists(tokenFile); } catch (IOException ex) { }
+        }
+    }
+    /**
+     * creates token file readable and writable only by its owner (service account)
+     */
+    private static void writeTokenFile(Path file, String token) throws IOException
+    {
+        Files.deleteIfExists(file);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        else
+        {
+            Files.createFile(file);
+            AclFileAttributeView acl = Files.getFileAttributeView(file, AclFileAttributeView.class);
+            if (acl != null)
+                acl.setAcl(Collections.singletonList(AclEntry.newBuilder()
+                    .setType(AclEntryType.ALLOW)
+                    .setPrincipal(acl.getOwner())
+                    .setPermissions(EnumSet.allOf(AclEntryPermission.class))
+                    .build()));
+        }
+        Files.write(file, token.getBytes(StandardCharsets.US_ASCII));
+    }
+    
+    private final class Client
+    {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(maxLineLength);
+        final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+        boolean busy;
+        boolean authenticated;
+        /**
+         * rest of too long line is skipped up to next '\n' (it is not a command)
+         */
+        boolean discarding;
+        Client(SocketChannel channel, SelectionKey key)
+        {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+    
+    private void run()
+    {
+        try
+        {
+            while (!closed)
+            {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null)
+                    task.run();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext())
+                {
+                    SelectionKey k = it.next();
+                    it.remove();
+                    try
+                    {
+                        if (!k.isValid())
+                            continue;
+                        if (k.isAcceptable())
+                            accept();
+                        else
+                        {
+                            Client c = (Client)k.attachment();
+                            if (k.isReadable())
+                                read(c);
+                            if (k.isValid() && k.isWritable())
+                            {
+                                flush(c);
+                                if (c.out.isEmpty())
+                                {
+                                    //lines received while answers were pending
+                                    processLines(c);
+                                    updateInterestOps(c);
+                                }
+                            }
+                        }
+                    }
+                    catch (IOException ex)
+                    {
+                        closeClient(k);
+                    }
+                }
+            }
+        }
+        catch (ClosedSelectorException ex) { }
+        catch (Throwable th)
+        {
+            if (!closed)
+                errLog.write(th, Common.getCurrentSTE(), "ManagementChannel selector thread error");
+        }
+        finally
+        {
+            try
+            {
+                for (SelectionKey k : selector.keys())
+                    if (k.channel() != server)
+                        closeClient(k);
+            }
+            catch (ClosedSelectorException ex) { }
+        }
+    }
+    private void accept() throws IOException
+    {
+        SocketChannel ch = server.accept();
+        if (ch == null)
+            return;
+        ch.configureBlocking(false);
+        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SelectionKey k = ch.register(selector, SelectionKey.OP_READ);
+        k.attach(new Client(ch, k));
+    }
+    private void closeClient(SelectionKey k)
+    {
+        k.cancel();
+        try { k.channel().close(); } catch (IOException ex) { }
+    }
+    private void read(Client c) throws IOException
+    {
+        if (c.channel.read(c.in) < 0)
+        {
+            closeClient(c.key);
+            return;
+        }
+        processLines(c);
+        updateInterestOps(c);
+    }
+    /**
+     * runs received commands while client reads answers: next command waits until previous answer is sent
+     */
+    private void processLines(Client c) throws IOException
+    {
+        while (!c.busy && c.out.isEmpty() && c.key.isValid())
+        {
+            int eol = -1;
+            for (int n = 0; n < c.in.position(); n++)
+                if (c.in.get(n) == '\n')
+                {
+                    eol = n;
+                    break;
+                }
+            if (eol < 0)
+            {
+                if (!c.in.hasRemaining())
+                {
+                    if (!c.discarding)
+                        answer(c, "ERROR command line is longer than " + maxLineLength + " bytes");
+                    c.discarding = true;
+                    c.in.clear();
+                }
+                return;
+            }
+            byte[] line = new byte[eol];
+            c.in.flip();
+            c.in.get(line);
+            c.in.get(); //'\n'
+            c.in.compact();
+            if (c.discarding)
+            {
+                c.discarding = false;
+                continue;
+            }
+            command(c, new String(line, StandardCharsets.UTF_8).trim());
+        }
+    }
+    private void command(Client c, String line) throws IOException
+    {
+        if (line.isEmpty())
+            return;
+        int sp = line.indexOf(' ');
+        String name = sp < 0 ? line : line.substring(0, sp);
+        String args = sp < 0 ? "" : line.substring(sp + 1).trim();
+        if (!c.authenticated)
+        {
+            if (name.equals("auth") && MessageDigest.isEqual(token, args.getBytes(StandardCharsets.US_ASCII)))
+            {
+                c.authenticated = true;
+                answer(c, "OK");
+            }
+            else
+                answer(c, "ERROR not authenticated, first command must be: auth <token from " + tokenFile.getFileName() + ">");
+            return;
+        }
+        CommandInfo ci = commands.get(name);
+        if (ci == null)
+            answer(c, "ERROR unknown command \"" + name + "\"");
+        else if (ci.fast)
+            answer(c, execute(ci, args));
+        else
+        {
+            c.busy = true;
+            updateInterestOps(c);
+            commandExecutor.execute(() -> 
+            {
+                String r = execute(ci, args);
+                selectorTasks.add(() -> 
+                {
+                    c.busy = false;
+                    try
+                    {
+                        answer(c, r);
+                        processLines(c);
+                        updateInterestOps(c);
+                    }
+                    catch (IOException ex)
+                    {
+                        closeClient(c.key);
+                    }
+                });
+                selector.wakeup();
+            });
+        }
+    }
+    private void answer(Client c, String text) throws IOException
+    {
+        if (!c.key.isValid())
+            return;
+        StringBuilder sb = new StringBuilder(text.length() + 8);
+        for (String l : text.split("\r?\n", -1))
+            sb.append(l.startsWith(".") ? "." : "").append(l).append('\n');
+        sb.append(".\n");
+        c.out.add(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        flush(c);
+    }
+    private void flush(Client c) throws IOException
+    {
+        while (!c.out.isEmpty())
+        {
+            ByteBuffer b = c.out.peek();
+            c.channel.write(b);
+            if (b.hasRemaining())
+                break;
+            c.out.poll();
+        }
+        updateInterestOps(c);
+    }
+    /**
+     * reads only when client can be served (not busy with command, previous answers are sent, free space in input buffer): 
+     * otherwise selector would spin, and client not reading answers would grow output queue without limit
+     */
+    private void updateInterestOps(Client c)
+    {
+        if (!c.key.isValid())
+            return;
+        int ops = (!c.busy && c.out.isEmpty() && c.in.hasRemaining() ? SelectionKey.OP_READ : 0) | (c.out.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+        c.key.interestOps(ops);
+    }
+}
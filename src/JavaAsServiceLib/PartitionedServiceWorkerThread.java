@@ -0,0 +1,204 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import JavaAsServiceLib.CommonsDaemonService.ServiceWorkerThread;
+import JavaAsServiceLib.CommonsDaemonService.Worker_DoWork_resultFlags;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * 
+ * 
+ * {@code ServiceWorkerThread} processing its work in parallel partitions.
+ * 
+ * Every {@code DoWork()} call takes partition keys ({@code partitionKeys()}), runs {@code processPartition()} 
+ * for every key in pool of {@code parallelism} threads, waits for all of them and joins their results 
+ * into one {@code Worker_DoWork_resultFlags}. 
+ * Exception of one partition is passed to {@code onPartitionException()} and does not affect other partitions; 
+ * only if all partitions failed, {@code DoWork()} fails (and worker sleeps according to its {@code RetryPolicy}). 
+ * {@code signalStop()} cancels (interrupts) running partitions.
+ * 
+ * @param <K> partition key type
+ */
+public abstract class PartitionedServiceWorkerThread<K> extends ServiceWorkerThread {
+    public final int parallelism;
+    private volatile ExecutorService pool;
+    private volatile List<Future<Worker_DoWork_resultFlags>> running;
+    private volatile long failedPartitions;
+    private volatile long cancelledPartitions;
+    
+    /**
+     * @param parallelism max partitions processed at the same time
+     */
+    protected PartitionedServiceWorkerThread(String serviceName, Common.Log workermsgLog, Common.Log workerexcLog, int parallelism)
+    {
+        this(serviceName, workermsgLog, workerexcLog, parallelism, 0, 0);
+    }
+    /**
+     * @param parallelism max partitions processed at the same time
+     */
+    protected PartitionedServiceWorkerThread(String serviceName, Common.Log workermsgLog, Common.Log workerexcLog, int parallelism, int normalLoopSleep_sec, int exceptionLoopSleep_sec)
+    {
+        super(serviceName, workermsgLog, workerexcLog, normalLoopSleep_sec, exceptionLoopSleep_sec);
+        if (parallelism <= 0)
+            throw new Error("MUSTNEVERTHROW: parallelism must be positive!");
+        this.parallelism = parallelism;
+    }
+    
+    /**
+     * @return keys of partitions to be processed by this {@code DoWork()} call (empty - nothing to do)
+     */
+    protected abstract Collection<K> partitionKeys() throws Exception;
+    /**
+     * Processes one partition. Called in pool thread, concurrently with other partitions.
+     * 
+     * @return partition result (can be null)
+     */
+    protected abstract Worker_DoWork_resultFlags processPartition(K key) throws Exception;
+    /**
+     * Called in worker thread for every failed partition. Default implementation writes exception to {@code excLog()}.
+     */
+    protected void onPartitionException(K key, Throwable th)
+    {
+        excLog().write(th, Common.getCurrentSTE(), "Error processPartition(" + key + ")");
+    }
+    
+    /**
+     * @return count of failed partitions since start
+     */
+    public long failedPartitions() { return failedPartitions; }
+    /**
+     * @return count of partitions cancelled by stop signal since start
+     */
+    public long cancelledPartitions() { return cancelledPartitions; }
+    
+    private ExecutorService pool()
+    {
+        ExecutorService p = pool;
+        if (p == null)
+        {
+            AtomicInteger n = new AtomicInteger();
+            boolean virtual = isVirtualThread();
+            pool = p = Executors.newFixedThreadPool(parallelism, (r) -> 
+            {
+                Thread t = ServiceThreads.newThread(r, "PartitionedServiceWorkerThread partition thread #" + n.incrementAndGet(), virtual);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return p;
+    }
+    
+    @Override
+    protected final Worker_DoWork_resultFlags DoWork() throws Exception
+    {
+        Collection<K> keys = partitionKeys();
+        if (keys == null || keys.isEmpty())
+            return Worker_DoWork_resultFlags.processed(0, false);
+        
+        ExecutorService p = pool();
+        ArrayList<K> keyList = new ArrayList<>(keys);
+        ArrayList<Future<Worker_DoWork_resultFlags>> futures = new ArrayList<>(keyList.size());
+        for (K key : keyList)
+            futures.add(p.submit(() -> processPartition(key)));
+        running = futures;
+        try
+        {
+            if (hasStopSignal()) //stop signaled before running was published
+                cancelRunning();
+            
+            Worker_DoWork_resultFlags r = null;
+            int failed = 0;
+            PartitionsFailedException allFailed = new PartitionsFailedException(keyList.size());
+            for (int n = 0; n < futures.size(); n++)
+            {
+                try
+                {
+                    r = merge(r, futures.get(n).get());
+                }
+                catch (CancellationException ex)
+                {
+                    cancelledPartitions++;
+                }
+                catch (InterruptedException ex)
+                {
+                    //worker thread is interrupted: partitions must not outlive DoWork() call
+                    cancel(futures);
+                    throw ex;
+                }
+                catch (ExecutionException ex)
+                {
+                    Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                    failed++;
+                    failedPartitions++;
+                    allFailed.addSuppressed(cause);
+                    onPartitionException(keyList.get(n), cause);
+                }
+            }
+            if (failed == keyList.size())
+                throw allFailed;
+            return r;
+        }
+        finally
+        {
+            running = null;
+        }
+    }
+    
+    private static Worker_DoWork_resultFlags merge(Worker_DoWork_resultFlags a, Worker_DoWork_resultFlags b)
+    {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        long nextDelay_ms = a.nextDelay_ms < 0 ? b.nextDelay_ms : (b.nextDelay_ms < 0 ? a.nextDelay_ms : Math.min(a.nextDelay_ms, b.nextDelay_ms));
+        int itemsProcessed = a.itemsProcessed < 0 ? b.itemsProcessed : (b.itemsProcessed < 0 ? a.itemsProcessed : a.itemsProcessed + b.itemsProcessed);
+        return new Worker_DoWork_resultFlags(a.doFastLoop || b.doFastLoop, nextDelay_ms, itemsProcessed, a.backlogRemains || b.backlogRemains);
+    }
+    
+    private void cancelRunning()
+    {
+        List<Future<Worker_DoWork_resultFlags>> r = running;
+        if (r != null)
+            cancel(r);
+    }
+    private static void cancel(List<Future<Worker_DoWork_resultFlags>> futures)
+    {
+        for (int n = 0; n < futures.size(); n++)
+            futures.get(n).cancel(true);
+    }
+    
+    /**
+     * partitions in progress are cancelled as soon as stop flag is set, not after shutdown hooks
+     */
+    @Override
+    void onStopFlagSet()
+    {
+        cancelRunning();
+    }
+    
+    @Override
+    void beforeThreadExit() throws Exception
+    {
+        ExecutorService p = pool;
+        if (p != null)
+            p.shutdownNow();
+    }
+    
+    /**
+     * All partitions of {@code DoWork()} call failed (partition exceptions are suppressed exceptions of this one)
+     */
+    public static class PartitionsFailedException extends Exception 
+    { 
+        private static final long serialVersionUID = 1L;
+        PartitionsFailedException(int partitions) { super("all " + partitions + " partitions failed"); }
+    }
+}
@@ -0,0 +1,305 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import JavaAsServiceLib.CommonsDaemonService.ServiceWorkerThread;
+import JavaAsServiceLib.CommonsDaemonService.Worker_DoWork_resultFlags;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * 
+ * 
+ * {@code ServiceWorkerThread} consuming items from in-process bounded queue.
+ * 
+ * Producers (any threads) call {@code offer()}; worker sleeps until items arrive and hands them 
+ * to {@code processBatch()} in batches of up to {@code batchSize} items. 
+ * Queue is lock-free (producers take lock only when queue is full and {@code Backpressure.BLOCK} is used).
+ * 
+ * If {@code processBatch()} throws, the same batch is passed again on next call (after {@code RetryPolicy} sleep), 
+ * so items are processed at least once. 
+ * On stop, items left in queue are passed to {@code onStopRemaining()} (by default it processes them); 
+ * items it failed to process are passed to {@code onStopUnprocessed()}.
+ * 
+ * @param <T> item type
+ */
+public abstract class QueueServiceWorkerThread<T> extends ServiceWorkerThread {
+    /**
+     * What {@code offer()} does when queue is full
+     */
+    public enum Backpressure 
+    { 
+        /**
+         * wait for free space (or stop signal)
+         */
+        BLOCK, 
+        /**
+         * drop item and return false (see {@code droppedCount()})
+         */
+        DROP 
+    }
+    
+    public final int capacity;
+    public final int batchSize;
+    public final Backpressure backpressure;
+    /**
+     * queue node holder: {@code queue.remove()} must remove offered item itself, not equal item of another producer
+     */
+    private static final class Queued<T>
+    {
+        final T item;
+        Queued(T item) { this.item = item; }
+    }
+    private final ConcurrentLinkedQueue<Queued<T>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Object notFullLOCK = new Object();
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+    private final ArrayList<T> batch;
+    private final List<T> batchView;
+    private volatile boolean drained;
+    
+    /**
+     * @param capacity max items in queue
+     * @param batchSize max items passed to one {@code processBatch()} call
+     * @param backpressure what {@code offer()} does when queue is full
+     */
+    protected QueueServiceWorkerThread(String serviceName, Common.Log workermsgLog, Common.Log workerexcLog, int capacity, int batchSize, Backpressure backpressure)
+    {
+        this(serviceName, workermsgLog, workerexcLog, capacity, batchSize, backpressure, 0, 0);
+    }
+    /**
+     * @param capacity max items in queue
+     * @param batchSize max items passed to one {@code processBatch()} call
+     * @param backpressure what {@code offer()} does when queue is full
+     * @param idleLoopSleep_sec max sleep of idle worker ({@code normalLoopSleep_sec}), new items wake it at once
+     */
+    protected QueueServiceWorkerThread(String serviceName, Common.Log workermsgLog, Common.Log workerexcLog, int capacity, int batchSize, Backpressure backpressure, int idleLoopSleep_sec, int exceptionLoopSleep_sec)
+    {
+        super(serviceName, workermsgLog, workerexcLog, idleLoopSleep_sec, exceptionLoopSleep_sec);
+        if (capacity <= 0)
+            throw new Error("MUSTNEVERTHROW: capacity must be positive!");
+        if (batchSize <= 0)
+            throw new Error("MUSTNEVERTHROW: batchSize must be positive!");
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.backpressure = Objects.requireNonNull(backpressure, "MUSTNEVERTHROW: backpressure is null!");
+        this.batch = new ArrayList<>(batchSize);
+        this.batchView = Collections.unmodifiableList(batch);
+    }
+    
+    /**
+     * Processes batch of items. Called in worker thread.
+     * 
+     * @param batch items (list is reused, do not keep reference to it)
+     */
+    protected abstract void processBatch(List<T> batch) throws Exception;
+    
+    /**
+     * Called in worker thread on stop with items, that were not processed (failed batch and queue contents). 
+     * Default implementation processes them with {@code processBatch()}; override to persist them instead. 
+     * If it throws, items left in {@code remaining} are passed to {@code onStopUnprocessed()} 
+     * (so items it has handled should be removed from {@code remaining}, as default implementation does).
+     * 
+     * @param remaining unprocessed items in queue order
+     */
+    protected void onStopRemaining(List<T> remaining) throws Exception
+    {
+        int from = 0;
+        try
+        {
+            for (; from < remaining.size(); from += batchSize)
+                processBatch(Collections.unmodifiableList(remaining.subList(from, Math.min(from + batchSize, remaining.size()))));
+        }
+        finally
+        {
+            //processed batches are not reported as unprocessed
+            remaining.subList(0, Math.min(from, remaining.size())).clear();
+        }
+    }
+    /**
+     * Called in worker thread on stop with items, that {@code onStopRemaining()} failed to process: 
+     * worker thread exits after it, so they are lost unless this method saves them. 
+     * Default implementation writes them to {@code excLog()}.
+     * 
+     * @param unprocessed items in queue order
+     * @param ex exception of {@code processBatch()} or {@code onStopRemaining()}
+     */
+    protected void onStopUnprocessed(List<T> unprocessed, Exception ex) throws Exception
+    {
+        excLog().write(ex, Common.getCurrentSTE(), "Service worker thread \"" + serviceName + "\" stopped with " + unprocessed.size() + " unprocessed items: " + unprocessed);
+    }
+    
+    /**
+     * Puts item to queue; when queue is full behaves according to {@code backpressure} 
+     * ({@code Backpressure.BLOCK} waits without timeout).
+     * 
+     * @return false if item was dropped (queue is full, or worker has stop signal)
+     */
+    public boolean offer(T item)
+    {
+        return offer(item, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+    /**
+     * Puts item to queue; when queue is full behaves according to {@code backpressure} 
+     * ({@code Backpressure.BLOCK} waits not longer than {@code timeout}).
+     * 
+     * @return false if item was dropped (queue is full, or worker has stop signal)
+     */
+    public boolean offer(T item, long timeout, TimeUnit unit)
+    {
+        Objects.requireNonNull(item, "MUSTNEVERTHROW: item is null!");
+        //drained without stop signal: worker thread exited after crash
+        if (hasStopSignal() || drained)
+            return drop();
+        while (!tryReserve())
+        {
+            if (backpressure == Backpressure.DROP || !awaitNotFull(timeout == Long.MAX_VALUE ? Long.MAX_VALUE : ServiceClock.current().nanoTime() + unit.toNanos(timeout)))
+                return drop();
+        }
+        Queued<T> q = new Queued<>(item);
+        queue.offer(q);
+        if (drained && queue.remove(q))
+        {
+            //worker thread already took its last items
+            size.decrementAndGet();
+            return drop();
+        }
+        wakeUp();
+        return true;
+    }
+    private boolean tryReserve()
+    {
+        for (;;)
+        {
+            int s = size.get();
+            if (s >= capacity)
+                return false;
+            if (size.compareAndSet(s, s + 1))
+                return true;
+        }
+    }
+    private boolean drop()
+    {
+        dropped.incrementAndGet();
+        return false;
+    }
+    /**
+     * @return false if deadline elapsed, or stop signal received
+     */
+    private boolean awaitNotFull(long deadline_ns)
+    {
+        waitingProducers.incrementAndGet();
+        try
+        {
+            synchronized (notFullLOCK)
+            {
+                while (size.get() >= capacity)
+                {
+                    if (hasStopSignal())
+                        return false;
+                    if (deadline_ns == Long.MAX_VALUE)
+                        notFullLOCK.wait();
+                    else
+                    {
+                        ServiceClock clock = ServiceClock.current();
+                        long rest = deadline_ns - clock.nanoTime();
+                        if (rest <= 0)
+                            return false;
+                        clock.timedWait(notFullLOCK, rest);
+                    }
+                }
+                return true;
+            }
+        }
+        catch (InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            waitingProducers.decrementAndGet();
+        }
+    }
+    private void signalNotFull()
+    {
+        if (waitingProducers.get() > 0)
+            synchronized (notFullLOCK)
+            {
+                notFullLOCK.notifyAll();
+            }
+    }
+    
+    /**
+     * @return items in queue (including batch being processed)
+     */
+    public int queueSize() { return size.get(); }
+    /**
+     * @return count of items dropped by {@code offer()}
+     */
+    public long droppedCount() { return dropped.get(); }
+    
+    @Override
+    protected final Worker_DoWork_resultFlags DoWork() throws Exception
+    {
+        if (batch.isEmpty())
+        {
+            Queued<T> q;
+            while (batch.size() < batchSize && (q = queue.poll()) != null)
+                batch.add(q.item);
+        }
+        int n = batch.size();
+        if (n == 0)
+            return Worker_DoWork_resultFlags.processed(0, false);
+        processBatch(batchView);
+        batch.clear();
+        size.addAndGet(-n);
+        signalNotFull();
+        return Worker_DoWork_resultFlags.processed(n, !queue.isEmpty());
+    }
+    
+    @Override
+    public void signalStop()
+    {
+        super.signalStop();
+        if (waitingProducers.get() > 0)
+            synchronized (notFullLOCK)
+            {
+                notFullLOCK.notifyAll();
+            }
+    }
+    
+    @Override
+    void beforeThreadExit() throws Exception
+    {
+        drained = true;
+        ArrayList<T> remaining = new ArrayList<>(batch);
+        batch.clear();
+        Queued<T> q;
+        while ((q = queue.poll()) != null)
+            remaining.add(q.item);
+        size.addAndGet(-remaining.size());
+        signalNotFull();
+        if (!remaining.isEmpty())
+        {
+            msgLog().write("QueueServiceWorkerThread.beforeThreadExit", "Service worker thread \"" + serviceName + "\" stopping with " + remaining.size() + " unprocessed items.");
+            try
+            {
+                onStopRemaining(remaining);
+            }
+            catch (Exception ex)
+            {
+                //only failed part: onStopUnprocessed() is called once, its exception goes to excLog
+                if (!remaining.isEmpty())
+                    onStopUnprocessed(Collections.unmodifiableList(remaining), ex);
+            }
+        }
+    }
+}
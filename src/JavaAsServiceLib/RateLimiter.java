@@ -0,0 +1,99 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * 
+ * 
+ * Token-bucket rate limit of {@code ServiceWorkerThread} iterations (see {@code ServiceWorkerThread.setThrottle}), 
+ * e.g. DB queries per second. 
+ * 
+ * Bucket is refilled with {@code permitsPerSec} tokens per second up to {@code burst} tokens. 
+ * One instance can be shared by workers (also of different services, see {@code shared()}); 
+ * rate can be changed at runtime.
+ * 
+ */
+public final class RateLimiter {
+    private static final ConcurrentHashMap<String, RateLimiter> registry = new ConcurrentHashMap<>();
+    /**
+     * @return process-wide limiter with given name (created with given rate on first call)
+     */
+    public static RateLimiter shared(String name, double permitsPerSec, long burst)
+    {
+        return registry.computeIfAbsent(name, (k) -> new RateLimiter(permitsPerSec, burst));
+    }
+    
+    private double permitsPerSec;
+    private long burst;
+    private double tokens;
+    private long lastRefill_ns;
+    
+    /**
+     * @param permitsPerSec refill rate
+     * @param burst bucket capacity (max permits taken at once after idle time)
+     */
+    public RateLimiter(double permitsPerSec, long burst)
+    {
+        setRate(permitsPerSec, burst);
+        this.tokens = this.burst;
+    }
+    
+    /**
+     * Changes rate (can be called from any thread).
+     */
+    public synchronized void setRate(double permitsPerSec, long burst)
+    {
+        if (!(permitsPerSec > 0))
+            throw new Error("MUSTNEVERTHROW: permitsPerSec must be positive!");
+        if (burst <= 0)
+            throw new Error("MUSTNEVERTHROW: burst must be positive!");
+        refill();
+        this.permitsPerSec = permitsPerSec;
+        this.burst = burst;
+        this.tokens = Math.min(tokens, burst);
+    }
+    public synchronized double permitsPerSec() { return permitsPerSec; }
+    public synchronized long burst() { return burst; }
+    
+    private void refill()
+    {
+        long now = ServiceClock.current().nanoTime();
+        if (lastRefill_ns != 0 && now - lastRefill_ns > 0)
+            tokens = Math.min(burst, tokens + (now - lastRefill_ns) * permitsPerSec / 1e9);
+        lastRefill_ns = now;
+    }
+    /**
+     * Takes available permits, up to {@code max}.
+     * 
+     * @return permits taken (0 if bucket is empty)
+     */
+    public synchronized long tryAcquire(long max)
+    {
+        refill();
+        long granted = Math.min(max, (long)tokens);
+        if (granted > 0)
+            tokens -= granted;
+        return granted;
+    }
+    /**
+     * @return time until {@code permits} are available, ns (0 - available now)
+     */
+    public synchronized long waitTime_ns(long permits)
+    {
+        refill();
+        if (tokens >= permits)
+            return 0;
+        return (long)Math.ceil((permits - tokens) / permitsPerSec * 1e9);
+    }
+    /**
+     * Returns unused permits to bucket.
+     */
+    public synchronized void refund(long permits)
+    {
+        if (permits <= 0)
+            return;
+        refill();
+        tokens = Math.min(burst, tokens + permits);
+    }
+}
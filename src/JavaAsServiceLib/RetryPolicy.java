@@ -0,0 +1,45 @@
+package JavaAsServiceLib;
+
+/**
+ *
+ * 
+ * 
+ * Policy of {@code ServiceWorkerThread}, that decides how long to sleep after {@code DoWork()} exception.
+ * 
+ * Methods are called by worker thread only; state getters can be called from any thread (metrics, {@code DoWorkOnException}).
+ * 
+ */
+public interface RetryPolicy {
+    /**
+     * Circuit-breaker state. 
+     * {@code CLOSED} - {@code DoWork()} is called normally; 
+     * {@code OPEN} - too many consecutive failures, {@code DoWork()} is not called until open period elapses; 
+     * {@code HALF_OPEN} - trial {@code DoWork()} call after open period: success closes circuit, failure opens it again.
+     */
+    public enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+    
+    /**
+     * called before every {@code DoWork()} call
+     */
+    default void beforeAttempt() { }
+    /**
+     * called after successful {@code DoWork()} call
+     */
+    void onSuccess();
+    /**
+     * called after {@code DoWork()} exception (before {@code DoWorkOnException})
+     * 
+     * @return sleep before next {@code DoWork()} call
+     */
+    long onFailure(Exception ex);
+    
+    CircuitState circuitState();
+    /**
+     * @return count of {@code DoWork()} exceptions since last successful call
+     */
+    int consecutiveFailures();
+    /**
+     * @return last sleep returned by {@code onFailure}
+     */
+    long lastDelay_ms();
+}
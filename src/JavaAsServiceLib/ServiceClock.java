@@ -0,0 +1,61 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+
+/**
+ *
+ * 
+ * 
+ * Time source of service lifecycle and worker pacing: loop sleeps, stop and exit timeouts,
+ * restart backoffs, retry and throttle delays are measured and waited with {@code ServiceClock.current()}.
+ * 
+ * By default it is system clock; {@code ServiceHarness} installs {@code VirtualClock}, that is advanced by test,
+ * so lifecycle and pacing scenarios run without waiting real time.
+ * Durations of work itself (metrics, stall detection, startup report) are always measured with {@code System.nanoTime()}.
+ * 
+ */
+public abstract class ServiceClock {
+    public static final ServiceClock SYSTEM = new ServiceClock()
+    {
+        @Override public long nanoTime() { return System.nanoTime(); }
+        @Override public long currentTimeMillis() { return System.currentTimeMillis(); }
+        @Override public void timedWait(Object monitor, long timeout_ns) throws InterruptedException { TimeUnit.NANOSECONDS.timedWait(monitor, timeout_ns); }
+        @Override public void awaitNanos(Condition condition, Runnable signalAll, long timeout_ns) throws InterruptedException { condition.awaitNanos(timeout_ns); }
+        @Override public String toString() { return "system clock"; }
+    };
+
+    private static volatile ServiceClock current = SYSTEM;
+    /**
+     * clock used by services and workers of this JVM
+     */
+    public static ServiceClock current()
+    {
+        return current;
+    }
+    static void install(ServiceClock clock)
+    {
+        current = clock == null ? SYSTEM : clock;
+    }
+
+    /**
+     * like {@code System.nanoTime()}
+     */
+    public abstract long nanoTime();
+    /**
+     * like {@code System.currentTimeMillis()}
+     */
+    public abstract long currentTimeMillis();
+    /**
+     * Like {@code TimeUnit.NANOSECONDS.timedWait(monitor, timeout_ns)}: must be called holding {@code monitor},
+     * can return before timeout (caller checks its condition and deadline again).
+     */
+    public abstract void timedWait(Object monitor, long timeout_ns) throws InterruptedException;
+    /**
+     * Like {@code condition.awaitNanos(timeout_ns)}: must be called holding lock of {@code condition},
+     * can return before timeout (caller checks its condition and deadline again).
+     * 
+     * @param signalAll wakes waiters of {@code condition} (takes its lock and calls {@code signalAll()}), used when clock is advanced
+     */
+    public abstract void awaitNanos(Condition condition, Runnable signalAll, long timeout_ns) throws InterruptedException;
+}
@@ -0,0 +1,296 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ *
+ * 
+ * 
+ * In-process driver of service lifecycle for tests: calls {@code OnStart}/{@code OnStop} (procrun)
+ * or {@code start}/{@code stop} (jsvc) of service class in this JVM, intercepts exit with restart signal
+ * ({@code System.exit(123)}) and, with {@code VirtualClock}, lets test move time of loop sleeps, restart backoffs
+ * and stop/exit timeouts instead of waiting it, e.g.:
+ * 
+ * {@code try (ServiceHarness h = new ServiceHarness(MyService.class, new VirtualClock())) { h.onStart(); h.clock().advance(5, TimeUnit.MINUTES); ... h.onStop(); }}
+ * 
+ * One harness can be open at a time (clock, exit handler and singleton are process-wide);
+ * console is not started, service constructor does not print its stack trace. Waits of harness itself are real time, limited by {@code realTimeOut_ms}.
+ * 
+ */
+public final class ServiceHarness implements AutoCloseable {
+    private static final AtomicReference<ServiceHarness> active = new AtomicReference<>();
+
+    public final Class<? extends CommonsDaemonService> serviceClass;
+    private final VirtualClock clock;
+    private volatile long realTimeOut_ms = 10_000;
+    private final Object exitLOCK = new Object();
+    private int exitCode = -1;
+    private int exits;
+    private volatile Thread mainThread;
+    private volatile Throwable mainThreadError;
+    private volatile CommonsDaemonService service;
+    private volatile boolean startupComplete;
+    private volatile boolean stopped;
+
+    /**
+     * harness with system clock
+     */
+    public ServiceHarness(Class<? extends CommonsDaemonService> serviceClass)
+    {
+        this(serviceClass, null);
+    }
+    /**
+     * @param clock virtual clock of services and workers while harness is open, or null - system clock
+     */
+    public ServiceHarness(Class<? extends CommonsDaemonService> serviceClass, VirtualClock clock)
+    {
+        if (serviceClass == null)
+            throw new Error("MUSTNEVERTHROW: serviceClass is null!");
+        if (!active.compareAndSet(null, this))
+            throw new Error("MUSTNEVERTHROW: another ServiceHarness is open!");
+        this.serviceClass = serviceClass;
+        this.clock = clock;
+        boolean opened = false;
+        try
+        {
+            CommonsDaemonService.setHarnessMode(true);
+            //static constructor of descendant (setSingletonClass) must run before harness sets singleton class
+            Class.forName(serviceClass.getName(), true, serviceClass.getClassLoader());
+            CommonsDaemonService.resetSingleton(serviceClass);
+            CommonsDaemonService.exitHandler = this::onExit;
+            ServiceClock.install(clock);
+            opened = true;
+        }
+        catch (ClassNotFoundException ex)
+        {
+            throw new Error("MUSTNEVERTHROW: " + ex.toString());
+        }
+        finally
+        {
+            if (!opened)
+            {
+                CommonsDaemonService.setHarnessMode(false);
+                active.compareAndSet(this, null);
+            }
+        }
+    }
+
+    /**
+     * @return virtual clock, or null if harness uses system clock
+     */
+    public VirtualClock clock()
+    {
+        return clock;
+    }
+    /**
+     * Limit of real time waits of harness (startup, stop, {@code awaitExit}), 10 s by default.
+     */
+    public void setRealTimeOut_ms(long realTimeOut_ms)
+    {
+        this.realTimeOut_ms = realTimeOut_ms;
+    }
+    /**
+     * @return started service, or null
+     */
+    public CommonsDaemonService service()
+    {
+        return service;
+    }
+
+    /**
+     * Calls {@code OnStart(args)} in harness main thread (like procrun does),
+     * returns when service startup is complete (main service cycle is running) or failed.
+     * 
+     * @throws Error or RuntimeException thrown by service startup
+     */
+    public CommonsDaemonService onStart(String... args) throws InterruptedException
+    {
+        chkNotStarted();
+        Thread t = new Thread(() ->
+        {
+            try
+            {
+                CommonsDaemonService.OnStart(args);
+            }
+            catch (CommonsDaemonService.ServiceExitError e) { }
+            catch (Throwable th)
+            {
+                mainThreadError = th;
+            }
+        }, "ServiceHarness main thread");
+        mainThread = t;
+        t.start();
+        awaitStartup();
+        return service;
+    }
+    /**
+     * Calls {@code OnStop(args)} (like procrun does) and waits for harness main thread to exit.
+     */
+    public void onStop(String... args) throws InterruptedException
+    {
+        chkStarted();
+        stopped = true;
+        CommonsDaemonService.OnStop(args);
+        Thread t = mainThread;
+        if (t != null)
+            t.join(realTimeOut_ms);
+    }
+    /**
+     * Creates service with default constructor and calls its {@code start()} (like jsvc does),
+     * returns when service startup is complete (main service cycle is running) or failed.
+     * 
+     * @throws Error or RuntimeException thrown by service startup
+     */
+    public CommonsDaemonService start() throws Exception
+    {
+        chkNotStarted();
+        CommonsDaemonService svc = serviceClass.getDeclaredConstructor().newInstance();
+        svc.init(new String[0]);
+        svc.start();
+        awaitStartup();
+        return service;
+    }
+    /**
+     * Calls {@code stop()} of service (like jsvc does) and waits for main service cycle to exit.
+     */
+    public void stop() throws InterruptedException
+    {
+        chkStarted();
+        stopped = true;
+        CommonsDaemonService svc = service;
+        svc.stop();
+        svc.destroy();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(realTimeOut_ms);
+        while (svc.isMainServiceCycleRunning() && deadline - System.nanoTime() > 0)
+            Thread.sleep(1);
+    }
+
+    private void chkNotStarted()
+    {
+        if (service != null || mainThread != null)
+            throw new Error("MUSTNEVERTHROW: service is already started by this harness!");
+    }
+    private void chkStarted()
+    {
+        if (service == null)
+            throw new Error("MUSTNEVERTHROW: service is not started by this harness!");
+    }
+    private void awaitStartup() throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(realTimeOut_ms);
+        for (;;)
+        {
+            CommonsDaemonService svc = CommonsDaemonService.singleton();
+            if (svc != null)
+                service = svc;
+            Throwable th = mainThreadError;
+            if (th instanceof Error)
+                throw (Error)th;
+            if (th != null)
+                throw th instanceof RuntimeException ? (RuntimeException)th : new RuntimeException(th);
+            if (svc != null && svc.isMainServiceCycleRunning())
+            {
+                startupComplete = true;
+                return;
+            }
+            Thread t = mainThread;
+            if (exitCode() >= 0 || (t != null && !t.isAlive()))
+                return;
+            if (deadline - System.nanoTime() <= 0)
+                throw new Error("ServiceHarness: service startup did not complete in " + realTimeOut_ms + " ms!");
+            Thread.sleep(1);
+        }
+    }
+
+    private void onExit(int status)
+    {
+        synchronized (exitLOCK)
+        {
+            exitCode = status;
+            exits++;
+            exitLOCK.notifyAll();
+        }
+    }
+    /**
+     * @return exit code of last intercepted exit ({@code 123} - exit with restart signal), or -1 if service did not exit
+     */
+    public int exitCode()
+    {
+        synchronized (exitLOCK)
+        {
+            return exitCode;
+        }
+    }
+    /**
+     * @return count of intercepted exits
+     */
+    public int exits()
+    {
+        synchronized (exitLOCK)
+        {
+            return exits;
+        }
+    }
+    /**
+     * Waits (real time, not longer than {@code realTimeOut_ms}) until service exits.
+     * 
+     * @return exit code, or -1 if service did not exit
+     */
+    public int awaitExit() throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(realTimeOut_ms);
+        synchronized (exitLOCK)
+        {
+            while (exits == 0)
+            {
+                long rest = deadline - System.nanoTime();
+                if (rest <= 0)
+                    break;
+                TimeUnit.NANOSECONDS.timedWait(exitLOCK, rest);
+            }
+            return exitCode;
+        }
+    }
+
+    /**
+     * Stops service if it is still running (after exit too: real process would be gone),
+     * restores system clock, {@code System.exit} and forgets singleton.
+     */
+    @Override
+    public void close()
+    {
+        try
+        {
+            CommonsDaemonService svc = service;
+            if (svc != null && startupComplete && !stopped)
+            {
+                stopped = true;
+                Thread t = new Thread(svc::serviceStop_internal, "ServiceHarness stop thread");
+                t.start();
+                t.join(realTimeOut_ms);
+                //stuck worker: service stopping timeout is measured by virtual clock
+                for (int n = 0; t.isAlive() && clock != null && n < 100; n++)
+                {
+                    clock.advance(1, TimeUnit.MINUTES);
+                    t.join(10);
+                }
+            }
+            Thread t = mainThread;
+            if (t != null)
+                t.join(realTimeOut_ms);
+        }
+        catch (InterruptedException iex)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            ServiceClock.install(null);
+            CommonsDaemonService.exitHandler = System::exit;
+            CommonsDaemonService.releaseSingleton();
+            CommonsDaemonService.setHarnessMode(false);
+            active.compareAndSet(this, null);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package JavaAsServiceLib;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * 
+ * 
+ * Creates threads for workers and their tasks: virtual threads when JVM is 21+ and they are requested, 
+ * platform threads otherwise. 
+ * 
+ * Library is compiled for Java 1.8, so virtual thread API is looked up at runtime; 
+ * on older JVMs (or if lookup fails) platform threads are always used.
+ * 
+ */
+public final class ServiceThreads {
+    private ServiceThreads() { }
+    
+    private static final MethodHandle ofVirtual;
+    private static final MethodHandle builderName;
+    private static final MethodHandle builderUnstarted;
+    private static final MethodHandle newVirtualThreadPerTaskExecutor;
+    static
+    {
+        MethodHandle ov = null, bn = null, bu = null, ve = null;
+        if (javaFeatureVersion() >= 21)
+            try
+            {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                Class<?> ofVirtualClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+                ov = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualClass));
+                bn = lookup.findVirtual(ofVirtualClass, "name", MethodType.methodType(ofVirtualClass, String.class));
+                bu = lookup.findVirtual(builderClass, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+                ve = lookup.findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            }
+            catch (ReflectiveOperationException | RuntimeException ex)
+            {
+                ov = bn = bu = ve = null;
+            }
+        ofVirtual = ov;
+        builderName = bn;
+        builderUnstarted = bu;
+        newVirtualThreadPerTaskExecutor = ve;
+    }
+    private static int javaFeatureVersion()
+    {
+        String v = System.getProperty("java.specification.version", "1.8");
+        if (v.startsWith("1."))
+            v = v.substring(2);
+        int dot = v.indexOf('.');
+        try
+        {
+            return Integer.parseInt(dot < 0 ? v : v.substring(0, dot));
+        }
+        catch (NumberFormatException ex)
+        {
+            return 8;
+        }
+    }
+    
+    /**
+     * @return true if JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadsSupported()
+    {
+        return ofVirtual != null;
+    }
+    
+    /**
+     * @param virtual create virtual thread if JVM supports them
+     * @return not started thread
+     */
+    public static Thread newThread(Runnable task, String name, boolean virtual)
+    {
+        if (virtual && ofVirtual != null)
+            try
+            {
+                return (Thread)builderUnstarted.invoke(builderName.invoke(ofVirtual.invoke(), name), task);
+            }
+            catch (Throwable th)
+            {
+                throw new Error("MUSTNEVERTHROW: error creating virtual thread: " + th.toString(), th);
+            }
+        Thread t = new Thread(task);
+        t.setName(name);
+        return t;
+    }
+    
+    /**
+     * @param virtual use virtual thread per task if JVM supports them
+     * @return executor running every task in new virtual thread, or (on older JVMs) cached pool of daemon platform threads
+     */
+    public static ExecutorService newTaskExecutor(String namePrefix, boolean virtual)
+    {
+        if (virtual && newVirtualThreadPerTaskExecutor != null)
+            try
+            {
+                return (ExecutorService)newVirtualThreadPerTaskExecutor.invoke();
+            }
+            catch (Throwable th)
+            {
+                throw new Error("MUSTNEVERTHROW: error creating virtual thread executor: " + th.toString(), th);
+            }
+        AtomicInteger n = new AtomicInteger();
+        ThreadFactory tf = (r) ->
+        {
+            Thread t = new Thread(r);
+            t.setName(namePrefix + " #" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return Executors.newCachedThreadPool(tf);
+    }
+}
@@ -0,0 +1,113 @@
+package JavaAsServiceLib;
+
+import JavaAsServiceLib.CommonsDaemonService.ServiceWorkerThread;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * 
+ * 
+ * Per-iteration metrics of {@code ServiceWorkerThread}. 
+ * 
+ * Written by worker thread only, without allocation; can be read from any thread.
+ * 
+ */
+public final class ServiceWorkerMetrics implements ServiceWorkerMetricsMBean {
+    private final ServiceWorkerThread worker;
+    private final LatencyHistogram doWorkLatency_ns = new LatencyHistogram();
+    private volatile long iterations;
+    private volatile long exceptions;
+    private volatile long workTime_ns;
+    private volatile long sleepTime_ns;
+    private volatile long lastIteration_ns;
+    private volatile long throttleWait_ns;
+    private volatile long throttledIterations;
+    private final LatencyHistogram doWorkCpu_ns = new LatencyHistogram();
+    private final LatencyHistogram doWorkAllocated_bytes = new LatencyHistogram();
+    
+    ServiceWorkerMetrics(ServiceWorkerThread worker)
+    {
+        this.worker = worker;
+    }
+    
+    void onIteration(long duration_ns, boolean isException)
+    {
+        doWorkLatency_ns.record(duration_ns);
+        lastIteration_ns = duration_ns;
+        workTime_ns += duration_ns;
+        iterations++;
+        if (isException)
+            exceptions++;
+    }
+    void onResources(long cpu_ns, long allocated_bytes)
+    {
+        if (cpu_ns >= 0)
+            doWorkCpu_ns.record(cpu_ns);
+        if (allocated_bytes >= 0)
+            doWorkAllocated_bytes.record(allocated_bytes);
+    }
+    void onThrottle(long wait_ns)
+    {
+        throttleWait_ns += wait_ns;
+        throttledIterations++;
+    }
+    void onSleep(long duration_ns)
+    {
+        sleepTime_ns += duration_ns;
+    }
+    
+    /**
+     * @return {@code DoWork()} latency histogram, nanoseconds
+     */
+    public LatencyHistogram doWorkLatency_ns() { return doWorkLatency_ns; }
+    /**
+     * @return {@code DoWork()} CPU time histogram, nanoseconds (empty if resource accounting is off)
+     */
+    public LatencyHistogram doWorkCpu_ns() { return doWorkCpu_ns; }
+    /**
+     * @return {@code DoWork()} allocated bytes histogram (empty if resource accounting is off)
+     */
+    public LatencyHistogram doWorkAllocated_bytes() { return doWorkAllocated_bytes; }
+    
+    @Override public String getServiceName() { return worker.serviceName; }
+    @Override public boolean isInwork() { return worker.isInwork(); }
+    @Override public boolean isStopSignaled() { return worker.hasStopSignal(); }
+    @Override public boolean isStopped() { return worker.lastStopState(); } //cached: monitoring thread must not call isStopped_addon
+    @Override public long getIterations() { return iterations; }
+    @Override public long getExceptions() { return exceptions; }
+    @Override public long getDoWorkLatencyP50_us() { return TimeUnit.NANOSECONDS.toMicros(doWorkLatency_ns.percentile(50)); }
+    @Override public long getDoWorkLatencyP99_us() { return TimeUnit.NANOSECONDS.toMicros(doWorkLatency_ns.percentile(99)); }
+    @Override public long getDoWorkLatencyMax_us() { return TimeUnit.NANOSECONDS.toMicros(doWorkLatency_ns.max()); }
+    @Override public long getDoWorkLatencyMean_us() { return TimeUnit.NANOSECONDS.toMicros(doWorkLatency_ns.mean()); }
+    @Override public long getLastIteration_us() { return TimeUnit.NANOSECONDS.toMicros(lastIteration_ns); }
+    @Override public long getWorkTime_ms() { return TimeUnit.NANOSECONDS.toMillis(workTime_ns); }
+    @Override public long getSleepTime_ms() { return TimeUnit.NANOSECONDS.toMillis(sleepTime_ns); }
+    @Override public String getCircuitState() { return worker.retryPolicy().circuitState().name(); }
+    @Override public int getConsecutiveFailures() { return worker.retryPolicy().consecutiveFailures(); }
+    @Override public long getLastRetryDelay_ms() { return worker.retryPolicy().lastDelay_ms(); }
+    @Override public long getCpuTime_ms() { return TimeUnit.NANOSECONDS.toMillis(doWorkCpu_ns.total()); }
+    @Override public long getDoWorkCpuP50_us() { return TimeUnit.NANOSECONDS.toMicros(doWorkCpu_ns.percentile(50)); }
+    @Override public long getDoWorkCpuP99_us() { return TimeUnit.NANOSECONDS.toMicros(doWorkCpu_ns.percentile(99)); }
+    @Override public long getDoWorkCpuMax_us() { return TimeUnit.NANOSECONDS.toMicros(doWorkCpu_ns.max()); }
+    @Override public long getAllocated_bytes() { return doWorkAllocated_bytes.total(); }
+    @Override public long getDoWorkAllocatedP50_bytes() { return doWorkAllocated_bytes.percentile(50); }
+    @Override public long getDoWorkAllocatedP99_bytes() { return doWorkAllocated_bytes.percentile(99); }
+    @Override public long getDoWorkAllocatedMax_bytes() { return doWorkAllocated_bytes.max(); }
+    @Override public long getThrottleWait_ms() { return TimeUnit.NANOSECONDS.toMillis(throttleWait_ns); }
+    @Override public long getThrottledIterations() { return throttledIterations; }
+    @Override public long getStallCount() { StallDetector sd = worker.stallDetector(); return sd == null ? 0 : sd.stallCount(); }
+    @Override public String getStallReport() { StallDetector sd = worker.stallDetector(); return sd == null ? null : sd.report(); }
+    
+    @Override
+    public String toString()
+    {
+        return "\"" + worker.serviceName + "\": inwork=" + isInwork() + ", stopSignaled=" + isStopSignaled() + ", stopped=" + isStopped() 
+            + ", iterations=" + getIterations() + ", exceptions=" + getExceptions() 
+            + ", DoWork() us: p50=" + getDoWorkLatencyP50_us() + " p99=" + getDoWorkLatencyP99_us() + " max=" + getDoWorkLatencyMax_us() + " mean=" + getDoWorkLatencyMean_us() 
+            + ", last iteration us=" + getLastIteration_us() + ", work ms=" + getWorkTime_ms() + ", sleep ms=" + getSleepTime_ms()
+            + (doWorkCpu_ns.count() > 0 ? ", CPU us: p50=" + getDoWorkCpuP50_us() + " p99=" + getDoWorkCpuP99_us() + " max=" + getDoWorkCpuMax_us() + ", CPU ms=" + getCpuTime_ms() : "")
+            + (doWorkAllocated_bytes.count() > 0 ? ", allocated bytes: p50=" + getDoWorkAllocatedP50_bytes() + " p99=" + getDoWorkAllocatedP99_bytes() + " max=" + getDoWorkAllocatedMax_bytes() + " total=" + getAllocated_bytes() : "")
+            + ", circuit=" + getCircuitState() + ", consecutive failures=" + getConsecutiveFailures() + ", stalls=" + getStallCount()
+            + (throttledIterations > 0 ? ", throttled=" + getThrottledIterations() + " wait ms=" + getThrottleWait_ms() : "");
+    }
+}
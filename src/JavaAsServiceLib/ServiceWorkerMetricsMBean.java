@@ -0,0 +1,39 @@
+package JavaAsServiceLib;
+
+/**
+ *
+ * 
+ * 
+ * JMX view of {@code ServiceWorkerMetrics}.
+ * 
+ */
+public interface ServiceWorkerMetricsMBean {
+    String getServiceName();
+    boolean isInwork();
+    boolean isStopSignaled();
+    boolean isStopped();
+    long getIterations();
+    long getExceptions();
+    long getDoWorkLatencyP50_us();
+    long getDoWorkLatencyP99_us();
+    long getDoWorkLatencyMax_us();
+    long getDoWorkLatencyMean_us();
+    long getLastIteration_us();
+    long getWorkTime_ms();
+    long getSleepTime_ms();
+    String getCircuitState();
+    int getConsecutiveFailures();
+    long getLastRetryDelay_ms();
+    long getCpuTime_ms();
+    long getDoWorkCpuP50_us();
+    long getDoWorkCpuP99_us();
+    long getDoWorkCpuMax_us();
+    long getAllocated_bytes();
+    long getDoWorkAllocatedP50_bytes();
+    long getDoWorkAllocatedP99_bytes();
+    long getDoWorkAllocatedMax_bytes();
+    long getThrottleWait_ms();
+    long getThrottledIterations();
+    long getStallCount();
+    String getStallReport();
+}
@@ -0,0 +1,87 @@
+package JavaAsServiceLib;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * 
+ * 
+ * Watches one file (its directory) and calls {@code onChanged} in own daemon thread when file is modified or replaced. 
+ * 
+ * Events are debounced: {@code onChanged} is called once, when file was quiet for {@code quietPeriod_ms} 
+ * (editors and deploy tools often write file in several steps).
+ * 
+ */
+final class SettingsWatcher {
+    private final Path file;
+    private final Runnable onChanged;
+    private final long quietPeriod_ms;
+    private final WatchService watchService;
+    private final Thread thread;
+    
+    SettingsWatcher(Path file, long quietPeriod_ms, Runnable onChanged) throws IOException
+    {
+        this.file = file.toAbsolutePath().normalize();
+        this.onChanged = onChanged;
+        this.quietPeriod_ms = quietPeriod_ms;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try
+        {
+            this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            watchService.close();
+            throw ex;
+        }
+        this.thread = new Thread(this::run, "CommonsDaemonService settings watcher");
+        this.thread.setDaemon(true);
+    }
+    
+    void start()
+    {
+        thread.start();
+    }
+    void stop()
+    {
+        try { watchService.close(); } catch (IOException ex) { }
+    }
+    
+    private void run()
+    {
+        try
+        {
+            while (true)
+            {
+                if (!isFileChanged(watchService.take()))
+                    continue;
+                //debounce
+                WatchKey k;
+                while ((k = watchService.poll(quietPeriod_ms, TimeUnit.MILLISECONDS)) != null)
+                    isFileChanged(k);
+                onChanged.run();
+            }
+        }
+        catch (ClosedWatchServiceException | InterruptedException ex) { }
+    }
+    /**
+     * @return true if key contains event of watched file
+     */
+    private boolean isFileChanged(WatchKey key)
+    {
+        boolean changed = false;
+        for (WatchEvent<?> e : key.pollEvents())
+            if (e.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(e.context()))
+                changed = true;
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,158 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * 
+ * 
+ * Thread-safe registry of hooks run on stop-signal of {@code ServiceWorkerThread} (see {@code ServiceWorkerThread.shutdownHooks()}). 
+ * 
+ * Hooks are grouped in named phases, phases run one after another in order of declaration. 
+ * Hooks of one phase run in parallel, so phase takes the time of its slowest hook; 
+ * every hook has own timeout, exception or timeout of one hook does not affect others. 
+ * Hooks run once, on first stop-signal.
+ * 
+ */
+public final class ShutdownHooks {
+    /**
+     * phase of hooks added without phase
+     */
+    public static final String defaultPhase = "default";
+    
+    private static ExecutorService hookExecutor;
+    private static synchronized ExecutorService hookExecutor()
+    {
+        if (hookExecutor == null)
+            hookExecutor = ServiceThreads.newTaskExecutor("ShutdownHooks hook thread", false);
+        return hookExecutor;
+    }
+    
+    private static final class Hook
+    {
+        final String name;
+        final Common.Action action;
+        final long timeout_ms;
+        Hook(String name, Common.Action action, long timeout_ms)
+        {
+            this.name = name;
+            this.action = action;
+            this.timeout_ms = timeout_ms;
+        }
+    }
+    private final LinkedHashMap<String, ArrayList<Hook>> phases = new LinkedHashMap<>();
+    private final AtomicBoolean runned = new AtomicBoolean();
+    
+    ShutdownHooks() { }
+    
+    /**
+     * Declares phase (appends it to the end of phase order, if it was not declared yet).
+     */
+    public synchronized ShutdownHooks phase(String phase)
+    {
+        phases.computeIfAbsent(Objects.requireNonNull(phase, "MUSTNEVERTHROW: phase is null!"), (k) -> new ArrayList<>());
+        return this;
+    }
+    /**
+     * Adds hook to {@code defaultPhase}.
+     */
+    public ShutdownHooks add(String name, Common.Action hook, long timeout_ms)
+    {
+        return add(defaultPhase, name, hook, timeout_ms);
+    }
+    /**
+     * Adds hook to phase (not declared phase is appended to the end of phase order).
+     * 
+     * @param name hook name for log
+     * @param timeout_ms max hook run time, 0 - no timeout
+     */
+    public synchronized ShutdownHooks add(String phase, String name, Common.Action hook, long timeout_ms)
+    {
+        Objects.requireNonNull(name, "MUSTNEVERTHROW: name is null!");
+        Objects.requireNonNull(hook, "MUSTNEVERTHROW: hook is null!");
+        if (timeout_ms < 0)
+            throw new Error("MUSTNEVERTHROW: timeout_ms must not be negative!");
+        phase(phase);
+        phases.get(phase).add(new Hook(name, hook, timeout_ms));
+        return this;
+    }
+    public synchronized int count()
+    {
+        int r = 0;
+        for (ArrayList<Hook> p : phases.values())
+            r += p.size();
+        return r;
+    }
+    
+    /**
+     * Runs all phases (only first call does it).
+     */
+    void run(AsyncLog excLog)
+    {
+        if (!runned.compareAndSet(false, true))
+            return;
+        ArrayList<String> phaseNames;
+        ArrayList<ArrayList<Hook>> phaseHooks = new ArrayList<>();
+        synchronized (this)
+        {
+            phaseNames = new ArrayList<>(phases.keySet());
+            for (ArrayList<Hook> p : phases.values())
+                phaseHooks.add(new ArrayList<>(p));
+        }
+        for (int n = 0; n < phaseNames.size(); n++)
+            if (!runPhase(phaseNames.get(n), phaseHooks.get(n), excLog))
+                return;
+    }
+    /**
+     * @return false if interrupted
+     */
+    private static boolean runPhase(String phase, ArrayList<Hook> hooks, AsyncLog excLog)
+    {
+        if (hooks.isEmpty())
+            return true;
+        long start_ns = System.nanoTime();
+        ArrayList<Future<?>> futures = new ArrayList<>(hooks.size());
+        for (Hook h : hooks)
+            futures.add(hookExecutor().submit(() -> { h.action.call(); }));
+        for (int n = 0; n < hooks.size(); n++)
+        {
+            Hook h = hooks.get(n);
+            Future<?> f = futures.get(n);
+            try
+            {
+                if (h.timeout_ms == 0)
+                    f.get();
+                else
+                    f.get(Math.max(0, start_ns + TimeUnit.MILLISECONDS.toNanos(h.timeout_ms) - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            catch (TimeoutException ex)
+            {
+                f.cancel(true);
+                excLog.write("ShutdownHooks.run", "shutdown hook \"" + phase + "/" + h.name + "\" didnt finish in " + h.timeout_ms + " ms, interrupted.", true);
+            }
+            catch (ExecutionException ex)
+            {
+                excLog.write(ex.getCause() != null ? ex.getCause() : ex, Common.getCurrentSTE(), "Error shutdown hook \"" + phase + "/" + h.name + "\"", true);
+            }
+            catch (CancellationException ex) { }
+            catch (InterruptedException ex)
+            {
+                for (Future<?> rest : futures)
+                    rest.cancel(true);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,171 @@
+package JavaAsServiceLib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * 
+ * 
+ * Per-iteration watchdog of {@code ServiceWorkerThread}. 
+ * 
+ * While {@code DoWork()} runs longer than deadline, stack of worker thread (only) is sampled every {@code sampleInterval_ms} 
+ * and frames are counted: "self" - frame was on top of the stack, "total" - frame was anywhere in the stack. 
+ * When stalled iteration ends, report with hottest frames is built. 
+ * Sampling is done by one shared daemon thread; worker thread only writes one volatile field per iteration.
+ * 
+ */
+final class StallDetector {
+    private static final int reportFrames = 15;
+    private static ScheduledExecutorService sampler;
+    private static synchronized ScheduledExecutorService sampler()
+    {
+        if (sampler == null)
+        {
+            ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(1, (r) -> 
+            {
+                Thread t = new Thread(r, "ServiceWorkerThread stall detector");
+                t.setDaemon(true);
+                return t;
+            });
+            s.setRemoveOnCancelPolicy(true);
+            sampler = s;
+        }
+        return sampler;
+    }
+    
+    private final Thread thread;
+    final long deadline_ms;
+    final long sampleInterval_ms;
+    private final long deadline_ns;
+    private volatile long iterationStart_ns; //0 - not in iteration
+    private volatile int samples;
+    private long samplesIterationStart_ns; //iteration, that samples and counts belong to (guarded by this)
+    private final HashMap<StackTraceElement, int[]> selfCounts = new HashMap<>();
+    private final LinkedHashMap<StackTraceElement, int[]> totalCounts = new LinkedHashMap<>(); //first sample order: equal counts are reported from top of the stack
+    private volatile long stallCount;
+    private volatile String lastReport;
+    private ScheduledFuture<?> sampling;
+    
+    StallDetector(Thread thread, long deadline_ms, long sampleInterval_ms)
+    {
+        this.thread = thread;
+        this.deadline_ms = deadline_ms;
+        this.sampleInterval_ms = sampleInterval_ms;
+        this.deadline_ns = TimeUnit.MILLISECONDS.toNanos(deadline_ms);
+    }
+    
+    void start()
+    {
+        sampling = sampler().scheduleWithFixedDelay(this::sample, sampleInterval_ms, sampleInterval_ms, TimeUnit.MILLISECONDS);
+    }
+    void stop()
+    {
+        if (sampling != null)
+            sampling.cancel(false);
+    }
+    
+    void iterationStarted(long now_ns)
+    {
+        iterationStart_ns = now_ns == 0 ? 1 : now_ns;
+    }
+    /**
+     * @return report, if iteration was stalled, otherwise null
+     */
+    String iterationEnded(long now_ns)
+    {
+        long start_ns = iterationStart_ns;
+        iterationStart_ns = 0;
+        if (samples == 0)
+            return null;
+        synchronized (this)
+        {
+            if (samplesIterationStart_ns != start_ns) //samples of earlier iteration, taken while it was ending
+            {
+                clearSamples();
+                return null;
+            }
+            String report = "DoWork() took " + TimeUnit.NANOSECONDS.toMillis(now_ns - start_ns) + " ms (deadline " + deadline_ms + " ms). " + buildReport();
+            clearSamples();
+            stallCount++;
+            lastReport = report;
+            return report;
+        }
+    }
+    
+    private void sample()
+    {
+        long start_ns = iterationStart_ns;
+        if (start_ns == 0 || System.nanoTime() - start_ns < deadline_ns)
+            return;
+        StackTraceElement[] stack = thread.getStackTrace();
+        synchronized (this)
+        {
+            if (iterationStart_ns != start_ns) //iteration ended while sampling
+                return;
+            if (samplesIterationStart_ns != start_ns) //first sample of this iteration: counts are reset in the same step
+            {
+                clearSamples();
+                samplesIterationStart_ns = start_ns;
+            }
+            if (stack.length > 0)
+                selfCounts.computeIfAbsent(stack[0], (k) -> new int[1])[0]++;
+            HashSet<StackTraceElement> seen = new HashSet<>();
+            for (StackTraceElement e : stack)
+                if (seen.add(e)) //recursion: count frame once per sample
+                    totalCounts.computeIfAbsent(e, (k) -> new int[1])[0]++;
+            samples++;
+        }
+    }
+    
+    private void clearSamples()
+    {
+        selfCounts.clear();
+        totalCounts.clear();
+        samples = 0;
+        samplesIterationStart_ns = 0;
+    }
+    
+    private String buildReport()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Stack samples: ").append(samples).append(" (every ").append(sampleInterval_ms).append(" ms).");
+        appendTop(sb, "\r\nHot frames (self):", selfCounts);
+        appendTop(sb, "\r\nHot frames (total):", totalCounts);
+        return sb.toString();
+    }
+    private static void appendTop(StringBuilder sb, String title, HashMap<StackTraceElement, int[]> counts)
+    {
+        ArrayList<Map.Entry<StackTraceElement, int[]>> l = new ArrayList<>(counts.entrySet());
+        l.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+        sb.append(title);
+        for (int n = 0; n < l.size() && n < reportFrames; n++)
+            sb.append("\r\n    ").append(l.get(n).getValue()[0]).append("  ").append(l.get(n).getKey());
+    }
+    
+    long stallCount()
+    {
+        return stallCount;
+    }
+    /**
+     * @return report of stall in progress, or of last stalled iteration, or null
+     */
+    String report()
+    {
+        if (samples > 0)
+            synchronized (this)
+            {
+                long start_ns = iterationStart_ns;
+                if (samples > 0 && start_ns != 0 && samplesIterationStart_ns == start_ns)
+                    return "DoWork() is running for " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start_ns) + " ms (deadline " + deadline_ms + " ms). " + buildReport();
+            }
+        return lastReport;
+    }
+}
@@ -0,0 +1,215 @@
+package JavaAsServiceLib;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * 
+ * 
+ * Named service init phases with dependencies (see {@code CommonsDaemonService.onServiceStartPhases}). 
+ * 
+ * Phase starts when all phases it depends on are done; independent phases run in parallel. 
+ * If phase fails, phases depending on it are not run and service start fails. 
+ * Start offset and duration of every phase are kept for startup report.
+ * 
+ */
+public final class StartupPhases {
+    @FunctionalInterface
+    public interface Phase
+    {
+        void run() throws Exception;
+    }
+    private static final class PhaseInfo
+    {
+        final String name;
+        final Phase action;
+        final String[] dependsOn;
+        volatile long start_ns;
+        volatile long end_ns;
+        volatile Throwable failure;
+        CompletableFuture<Void> future;
+        PhaseInfo(String name, Phase action, String[] dependsOn)
+        {
+            this.name = name;
+            this.action = action;
+            this.dependsOn = dependsOn;
+        }
+    }
+    private final LinkedHashMap<String, PhaseInfo> phases = new LinkedHashMap<>();
+    private boolean runned;
+    private long run_start_ns;
+    private long run_end_ns;
+    
+    StartupPhases() { }
+    
+    /**
+     * Declares phase.
+     * 
+     * @param name unique phase name
+     * @param action phase work, runs in its own thread
+     * @param dependsOn names of phases, that must be done before this one (can be declared later)
+     */
+    public synchronized StartupPhases add(String name, Phase action, String... dependsOn)
+    {
+        Objects.requireNonNull(name, "MUSTNEVERTHROW: name is null!");
+        Objects.requireNonNull(action, "MUSTNEVERTHROW: action is null!");
+        if (runned)
+            throw new Error("MUSTNEVERTHROW: startup phases already runned!");
+        if (phases.containsKey(name))
+            throw new Error("MUSTNEVERTHROW: startup phase \"" + name + "\" declared twice!");
+        phases.put(name, new PhaseInfo(name, action, dependsOn == null ? new String[0] : dependsOn.clone()));
+        return this;
+    }
+    public synchronized boolean isEmpty()
+    {
+        return phases.isEmpty();
+    }
+    
+    /**
+     * Runs all phases and waits for them.
+     * 
+     * @throws StartupPhaseException first phase, that failed
+     */
+    synchronized void run()
+    {
+        if (runned)
+            throw new Error("MUSTNEVERTHROW: startup phases already runned!");
+        runned = true;
+        ArrayList<PhaseInfo> order = new ArrayList<>(phases.size());
+        HashSet<String> done = new HashSet<>();
+        for (PhaseInfo p : phases.values())
+            topologicalOrder(p, new HashSet<>(), done, order);
+        
+        run_start_ns = System.nanoTime();
+        if (order.isEmpty())
+        {
+            run_end_ns = run_start_ns;
+            return;
+        }
+        ExecutorService pool = ServiceThreads.newTaskExecutor("CommonsDaemonService startup phase", false);
+        try
+        {
+            CompletableFuture<?>[] all = new CompletableFuture<?>[order.size()];
+            for (int n = 0; n < order.size(); n++)
+            {
+                PhaseInfo p = order.get(n);
+                Runnable task = () -> runPhase(p);
+                if (p.dependsOn.length == 0)
+                    p.future = CompletableFuture.runAsync(task, pool);
+                else
+                {
+                    CompletableFuture<?>[] deps = new CompletableFuture<?>[p.dependsOn.length];
+                    for (int m = 0; m < deps.length; m++)
+                        deps[m] = phases.get(p.dependsOn[m]).future;
+                    p.future = CompletableFuture.allOf(deps).thenRunAsync(task, pool);
+                }
+                all[n] = p.future;
+            }
+            try
+            {
+                CompletableFuture.allOf(all).join();
+            }
+            catch (CompletionException ex)
+            {
+                for (PhaseInfo p : order)
+                    if (p.failure != null)
+                        throw new StartupPhaseException(p.name, p.failure);
+                throw ex;
+            }
+        }
+        finally
+        {
+            run_end_ns = System.nanoTime();
+            pool.shutdown();
+        }
+    }
+    private void topologicalOrder(PhaseInfo p, HashSet<String> path, HashSet<String> done, ArrayList<PhaseInfo> order)
+    {
+        if (done.contains(p.name))
+            return;
+        if (!path.add(p.name))
+            throw new Error("MUSTNEVERTHROW: startup phases have dependency cycle: " + path + " -> " + p.name + "!");
+        for (String d : p.dependsOn)
+        {
+            PhaseInfo dp = phases.get(d);
+            if (dp == null)
+                throw new Error("MUSTNEVERTHROW: startup phase \"" + p.name + "\" depends on undeclared phase \"" + d + "\"!");
+            topologicalOrder(dp, path, done, order);
+        }
+        path.remove(p.name);
+        done.add(p.name);
+        order.add(p);
+    }
+    private void runPhase(PhaseInfo p)
+    {
+        p.start_ns = System.nanoTime();
+        try
+        {
+            p.action.run();
+        }
+        catch (Throwable th)
+        {
+            p.failure = th;
+            throw new CompletionException(th);
+        }
+        finally
+        {
+            p.end_ns = System.nanoTime();
+        }
+    }
+    
+    /**
+     * @return total time of {@code run()}, ms
+     */
+    synchronized long elapsed_ms()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(run_end_ns - run_start_ns);
+    }
+    /**
+     * @return phases timing: start offset from {@code run()} start, duration, dependencies
+     */
+    public synchronized String report()
+    {
+        if (!runned)
+            return "not runned";
+        StringBuilder sb = new StringBuilder();
+        sb.append(phases.size()).append(" phases in ").append(elapsed_ms()).append(" ms");
+        for (PhaseInfo p : phases.values())
+        {
+            sb.append("\r\n    ").append(p.name).append(": ");
+            if (p.start_ns == 0)
+                sb.append("not runned");
+            else
+            {
+                sb.append("+").append(TimeUnit.NANOSECONDS.toMillis(p.start_ns - run_start_ns)).append(" ms, took ")
+                    .append(TimeUnit.NANOSECONDS.toMillis(p.end_ns - p.start_ns)).append(" ms");
+                if (p.failure != null)
+                    sb.append(", failed: ").append(p.failure.toString());
+            }
+            if (p.dependsOn.length > 0)
+                sb.append(" (after ").append(String.join(", ", p.dependsOn)).append(")");
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Startup phase failed (cause is phase exception)
+     */
+    public static class StartupPhaseException extends RuntimeException 
+    { 
+        private static final long serialVersionUID = 1L;
+        public final String phase;
+        StartupPhaseException(String phase, Throwable cause) 
+        { 
+            super("startup phase \"" + phase + "\" failed: " + cause.toString(), cause); 
+            this.phase = phase;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *
+ * 
+ * 
+ * Condition, that must be satisfied before stopped worker is considered stopped (see {@code ServiceWorkerThread.newStopCondition}), 
+ * e.g. connection closed asynchronously. 
+ * 
+ * Event-driven replacement of polled {@code isStopped_addon}: owner calls {@code satisfy()} once, and service is woken up at once.
+ * 
+ */
+public final class StopCondition {
+    public final String name;
+    private final AtomicBoolean satisfied = new AtomicBoolean();
+    private final Runnable onSatisfied;
+    
+    StopCondition(String name, Runnable onSatisfied)
+    {
+        this.name = name;
+        this.onSatisfied = onSatisfied;
+    }
+    
+    /**
+     * Marks condition satisfied (repeated calls are ignored). Can be called from any thread.
+     */
+    public void satisfy()
+    {
+        if (satisfied.compareAndSet(false, true))
+            onSatisfied.run();
+    }
+    public boolean isSatisfied()
+    {
+        return satisfied.get();
+    }
+    @Override
+    public String toString()
+    {
+        return name + (isSatisfied() ? " (satisfied)" : " (pending)");
+    }
+}
@@ -0,0 +1,78 @@
+package JavaAsServiceLib;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ *
+ * 
+ * 
+ * CPU time and allocated bytes of current thread, from platform {@code ThreadMXBean}. 
+ * 
+ * Allocated bytes need HotSpot extension ({@code com.sun.management.ThreadMXBean}); 
+ * when some measurement is not supported by JVM (or by current thread, e.g. virtual), -1 is returned.
+ * 
+ */
+final class ThreadResourceMeter {
+    private ThreadResourceMeter() { }
+    
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean sunThreadMXBean;
+    private static final boolean cpuTimeSupported;
+    static
+    {
+        boolean cpu = false;
+        com.sun.management.ThreadMXBean sun = null;
+        try
+        {
+            cpu = threadMXBean.isCurrentThreadCpuTimeSupported();
+            if (cpu && !threadMXBean.isThreadCpuTimeEnabled())
+                threadMXBean.setThreadCpuTimeEnabled(true);
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean)
+            {
+                sun = (com.sun.management.ThreadMXBean)threadMXBean;
+                if (!sun.isThreadAllocatedMemorySupported())
+                    sun = null;
+                else if (!sun.isThreadAllocatedMemoryEnabled())
+                    sun.setThreadAllocatedMemoryEnabled(true);
+            }
+        }
+        catch (UnsupportedOperationException | SecurityException ex) { }
+        cpuTimeSupported = cpu;
+        sunThreadMXBean = sun;
+    }
+    
+    /**
+     * @return CPU time of current thread, nanoseconds, or -1
+     */
+    static long cpuTime_ns()
+    {
+        if (!cpuTimeSupported)
+            return -1;
+        try
+        {
+            return threadMXBean.getCurrentThreadCpuTime();
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            return -1;
+        }
+    }
+    /**
+     * @return bytes allocated by current thread since it started, or -1
+     */
+    @SuppressWarnings("deprecation")
+    static long allocatedBytes()
+    {
+        if (sunThreadMXBean == null)
+            return -1;
+        try
+        {
+            return sunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            return -1;
+        }
+    }
+}
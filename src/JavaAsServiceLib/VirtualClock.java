@@ -0,0 +1,126 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+
+/**
+ *
+ * 
+ * 
+ * {@code ServiceClock}, that stands still until test calls {@code advance()} (see {@code ServiceHarness}).
+ * 
+ * Threads waiting on the clock are woken on every advance and check their deadlines again;
+ * {@code awaitWaiters()} lets test wait until service threads are parked on the clock before advancing it.
+ * 
+ */
+public final class VirtualClock extends ServiceClock {
+    /**
+     * real wait of parked thread, covers advance made between deadline check and parking
+     */
+    private static final long recheck_ms = 10;
+
+    private final AtomicLong now_ns = new AtomicLong(1_000_000_000L);
+    private final long epoch_ms;
+    private final ConcurrentHashMap<Thread, Runnable> waiters = new ConcurrentHashMap<>();
+    private final Object waitersLOCK = new Object();
+
+    public VirtualClock()
+    {
+        this(System.currentTimeMillis());
+    }
+    /**
+     * @param epoch_ms {@code currentTimeMillis()} before first advance
+     */
+    public VirtualClock(long epoch_ms)
+    {
+        this.epoch_ms = epoch_ms;
+    }
+
+    @Override public long nanoTime() { return now_ns.get(); }
+    @Override public long currentTimeMillis() { return epoch_ms + TimeUnit.NANOSECONDS.toMillis(now_ns.get() - 1_000_000_000L); }
+
+    /**
+     * Moves clock forward and wakes all threads waiting on it.
+     */
+    public void advance(long duration, TimeUnit unit)
+    {
+        if (duration < 0)
+            throw new Error("MUSTNEVERTHROW: clock can not go back!");
+        now_ns.addAndGet(unit.toNanos(duration));
+        for (Runnable wake : waiters.values())
+            wake.run();
+    }
+    public void advance_ms(long duration_ms)
+    {
+        advance(duration_ms, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * @return count of threads waiting on the clock now
+     */
+    public int waiters()
+    {
+        return waiters.size();
+    }
+    /**
+     * Waits (real time) until at least {@code count} threads are waiting on the clock.
+     * 
+     * @return false if timeout elapsed
+     */
+    public boolean awaitWaiters(int count, long timeout_ms) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout_ms);
+        synchronized (waitersLOCK)
+        {
+            while (waiters.size() < count)
+            {
+                long rest = deadline - System.nanoTime();
+                if (rest <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(waitersLOCK, Math.min(rest, TimeUnit.MILLISECONDS.toNanos(recheck_ms)));
+            }
+            return true;
+        }
+    }
+    private void parked(Runnable wake)
+    {
+        waiters.put(Thread.currentThread(), wake);
+        synchronized (waitersLOCK)
+        {
+            waitersLOCK.notifyAll();
+        }
+    }
+
+    @Override
+    public void timedWait(Object monitor, long timeout_ns) throws InterruptedException
+    {
+        if (timeout_ns <= 0)
+            return;
+        parked(() -> { synchronized (monitor) { monitor.notifyAll(); } });
+        try
+        {
+            monitor.wait(recheck_ms);
+        }
+        finally
+        {
+            waiters.remove(Thread.currentThread());
+        }
+    }
+    @Override
+    public void awaitNanos(Condition condition, Runnable signalAll, long timeout_ns) throws InterruptedException
+    {
+        if (timeout_ns <= 0)
+            return;
+        parked(signalAll);
+        try
+        {
+            condition.await(recheck_ms, TimeUnit.MILLISECONDS);
+        }
+        finally
+        {
+            waiters.remove(Thread.currentThread());
+        }
+    }
+    @Override public String toString() { return "virtual clock (+" + TimeUnit.NANOSECONDS.toMillis(now_ns.get() - 1_000_000_000L) + " ms)"; }
+}
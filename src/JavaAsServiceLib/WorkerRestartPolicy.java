@@ -0,0 +1,76 @@
+package JavaAsServiceLib;
+
+import java.util.ArrayDeque;
+
+/**
+ *
+ * 
+ * 
+ * Policy of in-process restart of crashed {@code ServiceWorkerThread} 
+ * (see {@code CommonsDaemonService.setInProcessRestart}).
+ * 
+ * Worker is rebuilt after backoff delay, that starts from {@code initialBackoff_ms} and doubles with every restart 
+ * within {@code budgetWindow_ms} (up to {@code maxBackoff_ms}). 
+ * When {@code maxRestarts} restarts were done within {@code budgetWindow_ms}, budget is exhausted 
+ * and service exits with restart signal to OS service manager, as without the policy.
+ * 
+ * Budget is shared by all workers of the service.
+ * 
+ */
+public final class WorkerRestartPolicy {
+    public final int maxRestarts;
+    public final long budgetWindow_ms;
+    public final long initialBackoff_ms;
+    public final long maxBackoff_ms;
+    private final ArrayDeque<Long> restarts_ns = new ArrayDeque<>();
+    private long totalRestarts;
+    
+    /**
+     * @param maxRestarts restarts allowed within {@code budgetWindow_ms}
+     * @param budgetWindow_ms restart budget window
+     * @param initialBackoff_ms delay before first restart
+     * @param maxBackoff_ms max delay before restart
+     */
+    public WorkerRestartPolicy(int maxRestarts, long budgetWindow_ms, long initialBackoff_ms, long maxBackoff_ms)
+    {
+        if (maxRestarts <= 0)
+            throw new Error("MUSTNEVERTHROW: maxRestarts must be positive!");
+        if (budgetWindow_ms <= 0)
+            throw new Error("MUSTNEVERTHROW: budgetWindow_ms must be positive!");
+        if (initialBackoff_ms < 0 || maxBackoff_ms < initialBackoff_ms)
+            throw new Error("MUSTNEVERTHROW: 0 <= initialBackoff_ms <= maxBackoff_ms is required!");
+        this.maxRestarts = maxRestarts;
+        this.budgetWindow_ms = budgetWindow_ms;
+        this.initialBackoff_ms = initialBackoff_ms;
+        this.maxBackoff_ms = maxBackoff_ms;
+    }
+    
+    /**
+     * Takes one restart from budget.
+     * 
+     * @return delay before restart, or -1 if restart budget is exhausted
+     */
+    public synchronized long nextRestartBackoff_ms()
+    {
+        long now = ServiceClock.current().nanoTime();
+        long window_ns = budgetWindow_ms * 1_000_000L;
+        while (!restarts_ns.isEmpty() && now - restarts_ns.peekFirst() > window_ns)
+            restarts_ns.pollFirst();
+        int recent = restarts_ns.size();
+        if (recent >= maxRestarts)
+            return -1;
+        restarts_ns.addLast(now);
+        totalRestarts++;
+        long backoff = initialBackoff_ms;
+        for (int n = 0; n < recent && backoff < maxBackoff_ms; n++)
+            backoff = backoff == 0 ? 1 : backoff * 2;
+        return Math.min(backoff, maxBackoff_ms);
+    }
+    /**
+     * @return restarts taken from budget since service start
+     */
+    public synchronized long totalRestarts()
+    {
+        return totalRestarts;
+    }
+}
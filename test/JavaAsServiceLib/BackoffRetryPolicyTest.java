@@ -0,0 +1,84 @@
+package JavaAsServiceLib;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ *
+ *
+ * {@code BackoffRetryPolicy}: exponential backoff, jitter bounds and circuit-breaker states
+ * (open period is measured by {@code VirtualClock}).
+ *
+ */
+public class BackoffRetryPolicyTest {
+    @Test
+    public void backoffGrowsUpToMaxAndSuccessResetsIt()
+    {
+        BackoffRetryPolicy p = new BackoffRetryPolicy(100, 1000, 2, 0, 0, 0);
+        long[] expected = { 100, 200, 400, 800, 1000, 1000 };
+        for (int n = 0; n < expected.length; n++)
+        {
+            assertEquals("failure #" + (n + 1), expected[n], p.onFailure(new Exception()));
+            assertEquals(n + 1, p.consecutiveFailures());
+            assertEquals(expected[n], p.lastDelay_ms());
+        }
+        assertEquals(RetryPolicy.CircuitState.CLOSED, p.circuitState());
+        p.onSuccess();
+        assertEquals(0, p.consecutiveFailures());
+        assertEquals(100, p.onFailure(new Exception()));
+    }
+
+    @Test
+    public void jitterStaysInBounds()
+    {
+        for (int n = 0; n < 1000; n++)
+        {
+            BackoffRetryPolicy p = new BackoffRetryPolicy(1000, 1500, 2, 0.2, 0, 0);
+            long first = p.onFailure(new Exception());
+            assertTrue("first delay " + first, first >= 800 && first <= 1200);
+            long second = p.onFailure(new Exception());
+            assertTrue("capped delay " + second, second >= 1200 && second <= 1500);
+        }
+    }
+
+    @Test
+    public void breakerOpensThenHalfOpens() throws Exception
+    {
+        VirtualClock clock = new VirtualClock();
+        ServiceClock.install(clock);
+        try
+        {
+            BackoffRetryPolicy p = new BackoffRetryPolicy(100, 1000, 2, 0, 3, 5000);
+            assertEquals(100, p.onFailure(new Exception()));
+            assertEquals(200, p.onFailure(new Exception()));
+            assertEquals(RetryPolicy.CircuitState.CLOSED, p.circuitState());
+            assertEquals("open period", 5000, p.onFailure(new Exception()));
+            assertEquals(RetryPolicy.CircuitState.OPEN, p.circuitState());
+
+            clock.advance(4999, TimeUnit.MILLISECONDS);
+            p.beforeAttempt();
+            assertEquals(RetryPolicy.CircuitState.OPEN, p.circuitState());
+            clock.advance(1, TimeUnit.MILLISECONDS);
+            p.beforeAttempt();
+            assertEquals(RetryPolicy.CircuitState.HALF_OPEN, p.circuitState());
+
+            //failed trial call opens circuit again at once
+            assertEquals(5000, p.onFailure(new Exception()));
+            assertEquals(RetryPolicy.CircuitState.OPEN, p.circuitState());
+            clock.advance(5, TimeUnit.SECONDS);
+            p.beforeAttempt();
+            assertEquals(RetryPolicy.CircuitState.HALF_OPEN, p.circuitState());
+            p.onSuccess();
+            assertEquals(RetryPolicy.CircuitState.CLOSED, p.circuitState());
+            assertEquals(0, p.consecutiveFailures());
+            assertEquals(100, p.onFailure(new Exception()));
+        }
+        finally
+        {
+            ServiceClock.install(null);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package JavaAsServiceLib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ *
+ *
+ *
+ * {@code CheckpointFile}: last valid slot is read, damaged (torn) slot is skipped
+ * and next write does not overwrite the checkpoint that was read.
+ *
+ */
+public class CheckpointFileTest {
+    private static byte[] bytes(String s) { return s.getBytes(StandardCharsets.UTF_8); }
+
+    private static void corrupt(Path slot, long position) throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(slot, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            ch.read(b, position);
+            b.put(0, (byte)(b.get(0) ^ 0xFF));
+            b.rewind();
+            ch.write(b, position);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException
+    {
+        try (Stream<Path> s = Files.walk(dir))
+        {
+            s.sorted(Comparator.reverseOrder()).forEach((p) -> { try { Files.delete(p); } catch (IOException ex) { } });
+        }
+    }
+
+    @Test
+    public void lastWriteIsRead() throws Exception
+    {
+        Path dir = Files.createTempDirectory("CheckpointFileTest");
+        try
+        {
+            Path f = dir.resolve("worker.checkpoint");
+            CheckpointFile cf = new CheckpointFile(f);
+            assertNull(cf.read());
+            cf.write(bytes("first"), 1);
+            cf.write(bytes("second"), 2);
+            cf.write(bytes("third"), 3);
+
+            CheckpointFile.State s = new CheckpointFile(f).read();
+            assertArrayEquals(bytes("third"), s.data);
+            assertEquals(3, s.stateVersion);
+            assertEquals(3, s.seq);
+        }
+        finally
+        {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void damagedSlotIsSkippedAndPreviousIsKept() throws Exception
+    {
+        Path dir = Files.createTempDirectory("CheckpointFileTest");
+        try
+        {
+            Path f = dir.resolve("worker.checkpoint");
+            Path slotA = dir.resolve("worker.checkpoint.a");
+            Path slotB = dir.resolve("worker.checkpoint.b");
+            CheckpointFile cf = new CheckpointFile(f);
+            cf.read();
+            cf.write(bytes("old"), 1); //slot a
+            cf.write(bytes("new"), 1); //slot b
+
+            //data byte of newest slot: CRC mismatch
+            corrupt(slotB, 32);
+            CheckpointFile recovered = new CheckpointFile(f);
+            CheckpointFile.State s = recovered.read();
+            assertArrayEquals(bytes("old"), s.data);
+            assertEquals(1, s.seq);
+
+            //next write goes to damaged slot, not over the one just read
+            recovered.write(bytes("next"), 2);
+            corrupt(slotB, 0); //magic: torn header
+            s = new CheckpointFile(f).read();
+            assertArrayEquals(bytes("old"), s.data);
+
+            corrupt(slotB, 0);
+            s = new CheckpointFile(f).read();
+            assertArrayEquals(bytes("next"), s.data);
+            assertEquals(2, s.stateVersion);
+            assertEquals(2, s.seq);
+
+            //both slots damaged: no checkpoint
+            corrupt(slotA, 32);
+            corrupt(slotB, 32);
+            assertNull(new CheckpointFile(f).read());
+        }
+        finally
+        {
+            delete(dir);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ *
+ *
+ * {@code ManagementChannel} TCP protocol: token authentication, answers in order of pipelined commands
+ * (also of slow ones), rejection of too long command line without executing its tail.
+ *
+ */
+public class ManagementChannelTest {
+    private static final int realTimeOut_ms = 5000;
+
+    private static final class Connection implements AutoCloseable
+    {
+        final Socket socket;
+        final OutputStream out;
+        final BufferedReader in;
+        Connection(int port) throws IOException
+        {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setSoTimeout(realTimeOut_ms);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+        void send(String text) throws IOException
+        {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+        /**
+         * @return answer lines up to terminating {@code .}, joined with '\n'
+         */
+        String answer() throws IOException
+        {
+            StringBuilder sb = new StringBuilder();
+            for (String l; !(l = in.readLine()).equals("."); )
+                sb.append(sb.length() == 0 ? "" : "\n").append(l.startsWith(".") ? l.substring(1) : l);
+            return sb.toString();
+        }
+        @Override
+        public void close() throws IOException
+        {
+            socket.close();
+        }
+    }
+
+    private interface ChannelTest
+    {
+        void run(ManagementChannel mc, String token) throws Exception;
+    }
+    private static void withChannel(ChannelTest test) throws Exception
+    {
+        Path dir = Files.createTempDirectory("ManagementChannelTest");
+        Path tokenFile = dir.resolve("management.token");
+        ManagementChannel mc = new ManagementChannel()
+            .addCommand("echo", "answers its arguments", true, (args) -> args)
+            .addCommand("slow", "answers after 100 ms", false, (args) -> { Thread.sleep(100); return "slow " + args; });
+        mc.start(0, new AsyncLog(new Common.Log("ManagementChannelTest")), tokenFile);
+        try
+        {
+            test.run(mc, new String(Files.readAllBytes(tokenFile), StandardCharsets.US_ASCII));
+        }
+        finally
+        {
+            mc.close();
+            Files.deleteIfExists(tokenFile);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void commandsRequireToken() throws Exception
+    {
+        withChannel((mc, token) ->
+        {
+            try (Connection c = new Connection(mc.port()))
+            {
+                c.send("echo hello\n");
+                assertTrue(c.answer().startsWith("ERROR not authenticated"));
+                c.send("auth " + token.substring(1) + "0\n");
+                assertTrue(c.answer().startsWith("ERROR not authenticated"));
+                c.send("auth " + token + "\n");
+                assertEquals("OK", c.answer());
+                c.send("echo hello\n");
+                assertEquals("hello", c.answer());
+                c.send("nosuchcommand\n");
+                assertTrue(c.answer().startsWith("ERROR unknown command"));
+            }
+            //authentication is per connection
+            try (Connection c = new Connection(mc.port()))
+            {
+                c.send("echo again\n");
+                assertTrue(c.answer().startsWith("ERROR not authenticated"));
+            }
+        });
+    }
+
+    @Test
+    public void pipelinedCommandsAreAnsweredInOrder() throws Exception
+    {
+        withChannel((mc, token) ->
+        {
+            try (Connection c = new Connection(mc.port()))
+            {
+                c.send("auth " + token + "\nslow 1\necho 2\nslow 3\necho .4\n");
+                assertEquals("OK", c.answer());
+                assertEquals("slow 1", c.answer());
+                assertEquals("2", c.answer());
+                assertEquals("slow 3", c.answer());
+                assertEquals(".4", c.answer());
+            }
+        });
+    }
+
+    @Test
+    public void tooLongLineIsRejectedWithItsTail() throws Exception
+    {
+        withChannel((mc, token) ->
+        {
+            try (Connection c = new Connection(mc.port()))
+            {
+                c.send("auth " + token + "\n");
+                assertEquals("OK", c.answer());
+                char[] longLine = new char[10000];
+                Arrays.fill(longLine, 'x');
+                //tail of long line looks like command, but it is not executed
+                c.send("echo " + new String(longLine) + "echo tail\necho next\n");
+                assertTrue(c.answer().startsWith("ERROR command line is longer than"));
+                assertEquals("next", c.answer());
+                c.send("echo after\n");
+                assertEquals("after", c.answer());
+            }
+        });
+    }
+}
@@ -0,0 +1,158 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ *
+ *
+ * {@code QueueServiceWorkerThread} stop: every accepted item is processed or reported unprocessed (once),
+ * items offered while worker drains the queue are not lost, offers after worker exit are dropped.
+ *
+ */
+public class QueueServiceWorkerThreadTest {
+    private static final long realTimeOut_ms = 5000;
+
+    private static void awaitTrue(String what, BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(realTimeOut_ms);
+        while (!condition.getAsBoolean())
+        {
+            if (deadline - System.nanoTime() <= 0)
+                throw new AssertionError("timeout waiting for: " + what);
+            Thread.sleep(1);
+        }
+    }
+
+    private static class TestQueueWorker extends QueueServiceWorkerThread<Integer>
+    {
+        final List<Integer> processed = Collections.synchronizedList(new ArrayList<>());
+        final List<List<Integer>> unprocessed = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch firstBatchStarted = new CountDownLatch(1);
+        final CountDownLatch firstBatchRelease = new CountDownLatch(1);
+        volatile Integer failOn;
+        volatile boolean crash;
+        volatile boolean holdFirstBatch;
+        volatile boolean failUnprocessed;
+        TestQueueWorker(int capacity, int batchSize)
+        {
+            super("TestQueueWorker", new Common.Log("QueueServiceWorkerThreadTest"), new Common.Log("QueueServiceWorkerThreadTest"), capacity, batchSize, Backpressure.DROP);
+        }
+        @Override protected void processBatch(List<Integer> batch) throws Exception
+        {
+            if (crash)
+                throw new Error("worker crash");
+            if (holdFirstBatch && firstBatchStarted.getCount() > 0)
+            {
+                firstBatchStarted.countDown();
+                firstBatchRelease.await();
+            }
+            if (failOn != null && batch.contains(failOn))
+                throw new Exception("item " + failOn + " failed");
+            processed.addAll(batch);
+        }
+        @Override protected void onStopUnprocessed(List<Integer> items, Exception ex) throws Exception
+        {
+            unprocessed.add(new ArrayList<>(items));
+            if (failUnprocessed)
+                throw new Exception("unprocessed items are not saved");
+        }
+        @Override protected void JustBeforeStart() { }
+        @Override protected void DoWorkOnException(Exception ex, StackTraceElement ste) { }
+        @Override protected void onThreadExit() { }
+    }
+
+    @Test
+    public void failedStopItemsAreReportedOnce() throws Exception
+    {
+        TestQueueWorker w = new TestQueueWorker(100, 3);
+        w.holdFirstBatch = true;
+        w.failOn = 5;
+        w.failUnprocessed = true;
+        w.offer(0);
+        w.start();
+        assertTrue(w.firstBatchStarted.await(realTimeOut_ms, TimeUnit.MILLISECONDS));
+        for (int n = 1; n < 10; n++)
+            assertTrue(w.offer(n));
+        Thread stopper = new Thread(w::signalStop);
+        stopper.start();
+        awaitTrue("stop signal", w::hasStopSignal);
+        w.firstBatchRelease.countDown();
+        awaitTrue("worker stop", w::isStopped);
+        stopper.join(realTimeOut_ms);
+
+        //on stop: [1, 2, 3] processed, [4, 5, 6] failed
+        assertEquals(Arrays.asList(0, 1, 2, 3), w.processed);
+        assertEquals(Collections.singletonList(Arrays.asList(4, 5, 6, 7, 8, 9)), w.unprocessed);
+        assertEquals(0, w.queueSize());
+    }
+
+    @Test
+    public void offersRacingWithStopAreNotLost() throws Exception
+    {
+        for (int round = 0; round < 20; round++)
+        {
+            TestQueueWorker w = new TestQueueWorker(1_000_000, 16);
+            Set<Integer> accepted = ConcurrentHashMap.newKeySet();
+            AtomicInteger next = new AtomicInteger();
+            Thread[] producers = new Thread[4];
+            for (int p = 0; p < producers.length; p++)
+            {
+                producers[p] = new Thread(() ->
+                {
+                    //keep offering until worker has exited: the last offers race with drain
+                    while (!w.isStopped() || next.get() < 1000)
+                    {
+                        int item = next.getAndIncrement();
+                        if (w.offer(item))
+                            accepted.add(item);
+                    }
+                });
+            }
+            w.start();
+            for (Thread p : producers)
+                p.start();
+            Thread.sleep(round % 5);
+            w.signalStop();
+            awaitTrue("worker stop", w::isStopped);
+            for (Thread p : producers)
+                p.join(realTimeOut_ms);
+
+            Set<Integer> handled = new HashSet<>(w.processed);
+            for (List<Integer> u : w.unprocessed)
+                handled.addAll(u);
+            assertEquals("round " + round + ": processed and reported once", w.processed.size() + w.unprocessed.stream().mapToInt(List::size).sum(), handled.size());
+            assertEquals("round " + round + ": accepted items", accepted, handled);
+            assertEquals(next.get() - accepted.size(), w.droppedCount());
+        }
+    }
+
+    @Test
+    public void offerAfterCrashIsDropped() throws Exception
+    {
+        TestQueueWorker w = new TestQueueWorker(100, 3);
+        w.crash = true;
+        w.start();
+        assertTrue(w.offer(1));
+        awaitTrue("worker exit", () -> w.isStopped() && w.queueSize() == 0);
+        assertFalse(w.hasStopSignal());
+        assertFalse(w.offer(2));
+        assertEquals(1, w.droppedCount());
+        assertEquals(0, w.queueSize());
+    }
+}
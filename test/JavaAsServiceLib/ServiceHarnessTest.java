@@ -0,0 +1,186 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ *
+ *
+ * Service lifecycle scenarios driven by {@code ServiceHarness} with {@code VirtualClock}:
+ * real waits of the service (10 s loop sleeps, restart backoffs) take milliseconds.
+ *
+ */
+public class ServiceHarnessTest {
+    private static final long realTimeOut_ms = 5000;
+    //not in service class: its static constructor must run inside harness
+    private static final AtomicInteger restartedWorkersBuilt = new AtomicInteger();
+
+    private static void awaitTrue(String what, BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(realTimeOut_ms);
+        while (!condition.getAsBoolean())
+        {
+            if (deadline - System.nanoTime() <= 0)
+                throw new AssertionError("timeout waiting for: " + what);
+            Thread.sleep(1);
+        }
+    }
+
+    private static class TestWorker extends CommonsDaemonService.ServiceWorkerThread
+    {
+        final AtomicInteger doWorkCount = new AtomicInteger();
+        final boolean crash;
+        TestWorker(boolean crash)
+        {
+            super("TestWorker", new Common.Log("ServiceHarnessTest"), new Common.Log("ServiceHarnessTest"), 10, 60);
+            this.crash = crash;
+        }
+        @Override protected void JustBeforeStart() { }
+        @Override protected CommonsDaemonService.Worker_DoWork_resultFlags DoWork()
+        {
+            doWorkCount.incrementAndGet();
+            if (crash)
+                throw new Error("worker crash");
+            return null;
+        }
+        @Override protected void DoWorkOnException(Exception ex, StackTraceElement ste) { }
+        @Override protected void onThreadExit() { }
+    }
+
+    public static class PacedService extends CommonsDaemonService
+    {
+        static { setSingletonClass(PacedService.class); }
+        public PacedService() { super("ServiceHarnessTest"); }
+        @Override
+        protected CommonsDaemonServiceStartInfo onServiceStart()
+        {
+            return new CommonsDaemonServiceStartInfo(new Common.Log("ServiceHarnessTest"), new Common.Log("ServiceHarnessTest"), new TestWorker(false));
+        }
+    }
+    public static class CrashingService extends CommonsDaemonService
+    {
+        static { setSingletonClass(CrashingService.class); }
+        public CrashingService() { super("ServiceHarnessTest"); }
+        @Override
+        protected CommonsDaemonServiceStartInfo onServiceStart()
+        {
+            return new CommonsDaemonServiceStartInfo(new Common.Log("ServiceHarnessTest"), new Common.Log("ServiceHarnessTest"), new TestWorker(true));
+        }
+    }
+    public static class RestartedService extends CommonsDaemonService
+    {
+        static { setSingletonClass(RestartedService.class); }
+        public RestartedService()
+        {
+            super("ServiceHarnessTest");
+            setInProcessRestart(new WorkerRestartPolicy(3, 60_000, 1000, 1000));
+        }
+        @Override
+        protected CommonsDaemonServiceStartInfo onServiceStart()
+        {
+            //first worker crashes, rebuilt one works
+            return new CommonsDaemonServiceStartInfo(new Common.Log("ServiceHarnessTest"), new Common.Log("ServiceHarnessTest"), 1, () -> new TestWorker(restartedWorkersBuilt.incrementAndGet() == 1));
+        }
+    }
+    public static class BrokenService extends CommonsDaemonService
+    {
+        static { if (true) throw new RuntimeException("static constructor error"); }
+        public BrokenService() { super("ServiceHarnessTest"); }
+        @Override
+        protected CommonsDaemonServiceStartInfo onServiceStart() { return null; }
+    }
+
+    @Test
+    public void startPaceStop() throws Exception
+    {
+        try (ServiceHarness h = new ServiceHarness(PacedService.class, new VirtualClock()))
+        {
+            h.setRealTimeOut_ms(realTimeOut_ms);
+            h.onStart();
+            TestWorker w = (TestWorker)h.service().worker(0);
+            awaitTrue("first DoWork() and worker sleep", () -> w.doWorkCount.get() == 1 && h.clock().waiters() >= 1);
+            for (int n = 2; n <= 4; n++)
+            {
+                int expected = n;
+                h.clock().advance(10, TimeUnit.SECONDS);
+                awaitTrue("DoWork() #" + n, () -> w.doWorkCount.get() == expected && h.clock().waiters() >= 1);
+            }
+            h.clock().advance(9, TimeUnit.SECONDS);
+            Thread.sleep(50);
+            assertEquals("no DoWork() before loop sleep elapsed", 4, w.doWorkCount.get());
+
+            h.onStop();
+            assertTrue(w.isStopped());
+            assertFalse(h.service().isMainServiceCycleRunning());
+            assertEquals(-1, h.exitCode());
+        }
+    }
+
+    @Test
+    public void crashedWorkerExitsWithRestartSignal() throws Exception
+    {
+        try (ServiceHarness h = new ServiceHarness(CrashingService.class, new VirtualClock()))
+        {
+            h.setRealTimeOut_ms(realTimeOut_ms);
+            h.onStart();
+            assertEquals(123, h.awaitExit());
+            assertEquals(1, h.exits());
+        }
+    }
+
+    @Test
+    public void crashedWorkerIsRestartedInProcess() throws Exception
+    {
+        restartedWorkersBuilt.set(0);
+        try (ServiceHarness h = new ServiceHarness(RestartedService.class, new VirtualClock()))
+        {
+            h.setRealTimeOut_ms(realTimeOut_ms);
+            h.onStart();
+            awaitTrue("restart backoff", () -> restartedWorkersBuilt.get() == 1 && h.service().worker(0).isStopped() && h.clock().waiters() >= 1);
+            h.clock().advance(1, TimeUnit.SECONDS);
+            awaitTrue("restarted worker DoWork()", () -> h.service().worker(0) instanceof TestWorker && ((TestWorker)h.service().worker(0)).doWorkCount.get() == 1 && restartedWorkersBuilt.get() == 2);
+            assertFalse(h.service().worker(0).isStopped());
+            assertEquals(-1, h.exitCode());
+
+            h.onStop();
+            assertTrue(h.service().worker(0).isStopped());
+            assertEquals(-1, h.exitCode());
+        }
+    }
+
+    @Test
+    public void jsvcStartStop() throws Exception
+    {
+        try (ServiceHarness h = new ServiceHarness(PacedService.class))
+        {
+            h.setRealTimeOut_ms(realTimeOut_ms);
+            CommonsDaemonService svc = h.start();
+            assertTrue(svc.isMainServiceCycleRunning());
+            h.stop();
+            assertFalse(svc.isMainServiceCycleRunning());
+            assertTrue(svc.worker(0).isStopped());
+        }
+    }
+
+    @Test
+    public void harnessIsReleasedWhenServiceClassFailsToLoad() throws Exception
+    {
+        try
+        {
+            new ServiceHarness(BrokenService.class).close();
+            throw new AssertionError("static constructor error expected");
+        }
+        catch (ExceptionInInitializerError ex) { }
+        try (ServiceHarness h = new ServiceHarness(PacedService.class))
+        {
+            assertEquals(PacedService.class, h.serviceClass);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package JavaAsServiceLib;
+
+import CommonLib.Common;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ *
+ *
+ * {@code RateLimiter}, {@code ConcurrencyBudget} and their use by {@code ServiceWorkerThread.setThrottle}:
+ * worker keeps only permits granted by both, and no budget permits while it waits for rate tokens.
+ *
+ */
+public class ThrottleTest {
+    private static final long realTimeOut_ms = 5000;
+
+    private static void awaitTrue(String what, BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(realTimeOut_ms);
+        while (!condition.getAsBoolean())
+        {
+            if (deadline - System.nanoTime() <= 0)
+                throw new AssertionError("timeout waiting for: " + what);
+            Thread.sleep(1);
+        }
+    }
+
+    private static class ThrottledWorker extends CommonsDaemonService.ServiceWorkerThread
+    {
+        final ConcurrencyBudget cb;
+        final AtomicInteger doWorkCount = new AtomicInteger();
+        volatile int permits = -1;
+        volatile int budgetInUse = -1;
+        ThrottledWorker(RateLimiter rl, ConcurrencyBudget cb)
+        {
+            super("ThrottledWorker", new Common.Log("ThrottleTest"), new Common.Log("ThrottleTest"), 0, 1);
+            this.cb = cb;
+            setThrottle(rl, cb, 10);
+        }
+        @Override protected void JustBeforeStart() { }
+        @Override protected CommonsDaemonService.Worker_DoWork_resultFlags DoWork()
+        {
+            if (doWorkCount.incrementAndGet() == 1)
+            {
+                permits = iterationPermits();
+                budgetInUse = cb.inUse();
+            }
+            return null;
+        }
+        @Override protected void DoWorkOnException(Exception ex, StackTraceElement ste) { }
+        @Override protected void onThreadExit() { }
+    }
+
+    private static void stop(ThrottledWorker w) throws InterruptedException
+    {
+        w.signalStop();
+        awaitTrue("worker stop", w::isStopped);
+    }
+
+    @Test
+    public void rateLimiterRefillsUpToBurst()
+    {
+        VirtualClock clock = new VirtualClock();
+        ServiceClock.install(clock);
+        try
+        {
+            RateLimiter rl = new RateLimiter(10, 5);
+            assertEquals(5, rl.tryAcquire(10));
+            assertEquals(0, rl.tryAcquire(1));
+            assertEquals(TimeUnit.MILLISECONDS.toNanos(100), rl.waitTime_ns(1));
+            clock.advance(300, TimeUnit.MILLISECONDS);
+            assertEquals(3, rl.tryAcquire(10));
+            rl.refund(2);
+            assertEquals(2, rl.tryAcquire(10));
+            clock.advance(10, TimeUnit.SECONDS);
+            assertEquals("burst", 5, rl.tryAcquire(100));
+            rl.setRate(100, 50);
+            clock.advance(100, TimeUnit.MILLISECONDS);
+            assertEquals(10, rl.tryAcquire(100));
+        }
+        finally
+        {
+            ServiceClock.install(null);
+        }
+    }
+
+    @Test
+    public void concurrencyBudgetGrantsPartially()
+    {
+        ConcurrencyBudget cb = new ConcurrencyBudget(3);
+        assertEquals(2, cb.tryAcquire(2));
+        assertEquals(1, cb.tryAcquire(5));
+        assertEquals(0, cb.tryAcquire(1));
+        cb.release(2);
+        assertEquals(2, cb.tryAcquire(5));
+        cb.setLimit(1);
+        assertEquals(0, cb.tryAcquire(1));
+        assertEquals(3, cb.inUse());
+        cb.release(3);
+        assertEquals(1, cb.tryAcquire(5));
+    }
+
+    @Test
+    public void surplusBudgetIsReleasedBeforeDoWork() throws Exception
+    {
+        ConcurrencyBudget cb = new ConcurrencyBudget(10);
+        ThrottledWorker w = new ThrottledWorker(new RateLimiter(1000, 3), cb);
+        w.start();
+        try
+        {
+            awaitTrue("first DoWork()", () -> w.doWorkCount.get() >= 1);
+            assertEquals("rate grant", 3, w.permits);
+            assertEquals("budget kept for DoWork()", 3, w.budgetInUse);
+        }
+        finally
+        {
+            stop(w);
+        }
+        assertEquals(0, cb.inUse());
+    }
+
+    @Test
+    public void budgetIsNotHeldWhileWaitingForRate() throws Exception
+    {
+        ConcurrencyBudget cb = new ConcurrencyBudget(10);
+        //one token, next one in 100 s
+        ThrottledWorker w = new ThrottledWorker(new RateLimiter(0.01, 1), cb);
+        w.start();
+        try
+        {
+            awaitTrue("first DoWork()", () -> w.doWorkCount.get() == 1);
+            Thread.sleep(100);
+            assertEquals(1, w.doWorkCount.get());
+            assertEquals("budget in use by throttled worker", 0, cb.inUse());
+            assertEquals(10, cb.tryAcquire(10));
+            cb.release(10);
+        }
+        finally
+        {
+            stop(w);
+        }
+        assertTrue(w.isStopped());
+        assertEquals(0, cb.inUse());
+    }
+}